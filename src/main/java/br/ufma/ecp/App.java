@@ -4,12 +4,22 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files; 
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import br.ufma.ecp.token.TokenBuffer;
 
 public class App 
 {
 
+    private static final long STREAMING_THRESHOLD = 256L << 20;
+
     
     public static void saveToFile(String fileName, String output) {
   
@@ -31,27 +41,176 @@ public class App
     }
 
 
-    private static String fromFile(File file) {        
+    // mapeia o arquivo em memoria: o Scanner le direto do page cache, sem copias
+    private static ByteBuffer fromFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    // falha de leitura ou escrita: o arquivo conta como erro, sem virar erro de sintaxe
+    private static boolean ioError(String inputFileName, IOException e) {
+        System.err.println(inputFileName + ": I/O error: " + e);
+        return false;
+    }
+
+
+    // arquivos enormes (acima de STREAMING_THRESHOLD) vao por compileStreaming
+    private static Parser parserFor(File file) throws IOException {
+        var input = fromFile(file);
+        if (input.remaining() >= 2 * ParallelScanner.DEFAULT_CHUNK_SIZE)
+            return new Parser(ParallelScanner.tokenize(input));
+        // arquivos comuns: o mesmo Parser (e seus buffers) serve o lote inteiro
+        return Parser.pooled(input);
+    }
+
 
-        byte[] bytes;
+    // so grava o .vm se a classe nao tiver erros, que vao para stderr; com
+    // program o codigo fica guardado para as otimizacoes do programa inteiro
+    private static boolean finish(String inputFileName, String baseName, Parser parser, Map<String, String> program) {
+        for (var error : parser.errors())
+            System.err.println(inputFileName + ": " + error);
+        if (parser.hasErrors())
+            return false;
+        if (parser.removedInstructions() > 0)
+            System.out.println("  " + parser.removedInstructions() + " VM instructions removed");
+        if (program != null)
+            program.put(baseName, parser.VMOutput());
+        else
+            saveToFile(baseName + ".vm", parser.VMOutput());
+        return true;
+    }
+
+    // baseName -> codigo VM de todas as classes do diretorio; o nome da classe e o do arquivo.
+    // false (e nada gravado) se os estaticos nao couberem na RAM mesmo sem o pool
+    private static boolean saveProgram(Map<String, String> outputs, Set<Optimization> optimizations, int inlineSize,
+            boolean optimize) {
+        var program = new WholeProgram();
+        for (var entry : outputs.entrySet())
+            program.add(new File(entry.getKey()).getName(), entry.getValue());
+        // os estaticos de todas as classes dividem a RAM 16-255: o pool cede primeiro
+        if (optimize && optimizations.contains(Optimization.STRING_POOL)) {
+            int unpooled = program.unpoolStrings(VMWriter.STATIC_SEGMENT_SIZE);
+            if (unpooled > 0)
+                System.out.println(unpooled + " pooled strings built on each use to fit the static segment");
+            // o que sobrou do pool nao tinha o formato esperado (ou os declarados ja nao cabem)
+            int used = program.staticsUsed();
+            if (used > VMWriter.STATIC_SEGMENT_SIZE) {
+                System.err.println("static segment overflow: " + used + " static variables, only "
+                        + VMWriter.STATIC_SEGMENT_SIZE + " fit in RAM 16-255");
+                return false;
+            }
+        }
+        // o inlining vem antes: funcoes que so eram chamadas dali ficam mortas
+        if (optimize && optimizations.contains(Optimization.INLINE)) {
+            int inlined = program.inline(inlineSize);
+            System.out.println(inlined + " calls inlined");
+        }
+        if (optimize && optimizations.contains(Optimization.DEAD_FUNCTIONS)) {
+            int before = program.size();
+            var removed = program.removeDeadFunctions();
+            System.out.println(removed.size() + " unreachable functions removed from " + program.entry() + ": "
+                    + (before - program.size()) + " of " + before + " VM instructions");
+        }
+        for (var entry : outputs.entrySet())
+            saveToFile(entry.getKey() + ".vm", program.vmOutput(new File(entry.getKey()).getName()));
+        return true;
+    }
+
+    // arquivos enormes passam pelo Scanner em modo streaming: entrada e tokens em
+    // janelas de tamanho fixo. A saida VM (VMWriter) e os nomes (Names) continuam
+    // em memoria e crescem com o arquivo. O canal fecha quando a classe termina.
+    private static boolean compileStreaming(File file, String inputFileName, String baseName,
+            Set<Optimization> optimizations, Map<String, String> program) {
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            var parser = new Parser(channel);
+            parser.setOptimizations(optimizations);
+            parser.parse();
+            return finish(inputFileName, baseName, parser, program);
+        } catch (IOException e) {
+            return ioError(inputFileName, e);
+        }
+    }
+
+    // com --xml tambem grava os arquivos de tokens (T.xml) e da arvore (.xml) do corretor
+    private static boolean compile(File file, boolean xml, Set<Optimization> optimizations,
+            Map<String, String> program) {
+        var inputFileName = file.getAbsolutePath();
+        var pos = inputFileName.lastIndexOf('.');
+        var baseName = inputFileName.substring(0, pos);
+
+        System.out.println("compiling " +  inputFileName);
+        if (!xml && file.length() > STREAMING_THRESHOLD)
+            return compileStreaming(file, inputFileName, baseName, optimizations, program);
+        if (!xml) {
+            Parser parser;
+            try {
+                parser = parserFor(file);
+            } catch (IOException e) {
+                return ioError(inputFileName, e);
+            }
+            parser.setOptimizations(optimizations);
+            parser.parse(ForkJoinPool.commonPool());
+            return finish(inputFileName, baseName, parser, program);
+        }
+
+        TokenBuffer tokens;
         try {
-            bytes = Files.readAllBytes(file.toPath());
-            String textoDoArquivo = new String(bytes, "UTF-8");
-            return textoDoArquivo;
+            tokens = new Scanner(fromFile(file)).tokenize();
         } catch (IOException e) {
-            e.printStackTrace();
+            return ioError(inputFileName, e);
+        }
+        try (var tokensOut = FileChannel.open(new File(baseName + "T.xml").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             var treeOut = FileChannel.open(new File(baseName + ".xml").toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var writer = new XmlWriter(tokensOut);
+            writer.tokens(tokens);
+            writer.flush();
+
+            var tree = new XmlParseListener(treeOut);
+            var parser = new Parser(tokens);
+            parser.setOptimizations(optimizations);
+            parser.setListener(tree);
+            parser.parse();
+            tree.flush();
+            return finish(inputFileName, baseName, parser, program);
+        } catch (IOException e) {
+            return ioError(inputFileName, e);
         }
-        return "";
-    } 
+    }
 
 
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.err.println("Please provide a single file path argument.");
+        // opcoes antes do caminho: --xml, -O (otimizacoes que nao mudam o comportamento
+        // nem aumentam o codigo; a saida deixa de ser a de referencia), --pool-strings
+        // (STRING_POOL) e --inline[=N] (INLINE, corpos de ate N instrucoes), so explicitos
+        boolean xml = false;
+        Set<Optimization> optimizations = EnumSet.noneOf(Optimization.class);
+        int inlineSize = WholeProgram.DEFAULT_INLINE_SIZE;
+        int arg = 0;
+        for (; arg < args.length - 1; arg++) {
+            if (args[arg].equals("--xml"))
+                xml = true;
+            else if (args[arg].equals("-O"))
+                optimizations.addAll(EnumSet.complementOf(EnumSet.of(Optimization.STRING_POOL, Optimization.INLINE)));
+            else if (args[arg].equals("--pool-strings"))
+                optimizations.add(Optimization.STRING_POOL);
+            else if (args[arg].equals("--inline"))
+                optimizations.add(Optimization.INLINE);
+            else if (args[arg].matches("--inline=[0-9]{1,6}")) {
+                optimizations.add(Optimization.INLINE);
+                inlineSize = Integer.parseInt(args[arg].substring("--inline=".length()));
+            } else
+                break;
+        }
+        if (args.length == 0 || arg != args.length - 1) {
+            System.err.println("Please provide a single file path argument "
+                    + "(optionally preceded by --xml, -O, --pool-strings and --inline[=N]).");
             System.exit(1);
         }
 
-        File file = new File(args[0]);
+        File file = new File(args[arg]);
 
         if (!file.exists()) {
             System.err.println("The file doesn't exist.");
@@ -59,42 +218,39 @@ public class App
         }
 
         // we need to compile every file in the directory
+        // (a file with errors does not stop the others)
+        int failed = 0;
         if (file.isDirectory()) {
+            // funcoes mortas, corpos para inlining e o total de estaticos so se sabe
+            // com todas as classes compiladas
+            Map<String, String> program = optimizations.contains(Optimization.DEAD_FUNCTIONS)
+                    || optimizations.contains(Optimization.INLINE)
+                    || optimizations.contains(Optimization.STRING_POOL) ? new LinkedHashMap<>() : null;
             for (File f : file.listFiles()) {
                 if (f.isFile() && f.getName().endsWith(".jack")) {
-
-                    var inputFileName = f.getAbsolutePath();
-                    var pos = inputFileName.lastIndexOf('.');
-                    var outputFileName = inputFileName.substring(0, pos) + ".vm";
-                    
-                    System.out.println("compiling " +  inputFileName);
-                    var input = fromFile(f);
-                    var parser = new Parser(input.getBytes(StandardCharsets.UTF_8));
-                    parser.parse();
-                    var result = parser.VMOutput();
-                    saveToFile(outputFileName, result);
+                    if (!compile(f, xml, optimizations, program))
+                        failed++;
                 }
 
             }
+            // com classes faltando o grafo de chamadas fica incompleto: grava sem mudar nada
+            if (program != null && !saveProgram(program, optimizations, inlineSize, failed == 0))
+                System.exit(1);
         // we only compile the single file
         } else if (file.isFile()) {
             if (!file.getName().endsWith(".jack"))  {
                 System.err.println("Please provide a file name ending with .jack");
                 System.exit(1);
             } else {
-                var inputFileName = file.getAbsolutePath();
-                var pos = inputFileName.lastIndexOf('.');
-                var outputFileName = inputFileName.substring(0, pos) + ".vm";
-                
-                System.out.println("compiling " +  inputFileName);
-                var input = fromFile(file);
-                var parser = new Parser(input.getBytes(StandardCharsets.UTF_8));
-                parser.parse();
-                var result = parser.VMOutput();
-                saveToFile(outputFileName, result);
-                
+                if (!compile(file, xml, optimizations, null))
+                    failed++;
             }
         }
+
+        if (failed > 0) {
+            System.err.println(failed + " file(s) with errors");
+            System.exit(1);
+        }
     }
 
 }
\ No newline at end of file
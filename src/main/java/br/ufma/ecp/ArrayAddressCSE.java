@@ -0,0 +1,211 @@
+package br.ufma.ecp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+import br.ufma.ecp.ControlFlowGraph.Block;
+
+// Eliminacao de subexpressoes comuns nos enderecos de array dentro de cada
+// bloco basico. O endereco de a[i] e "push i; push a; add"; com base e indice
+// sem alteracao no meio:
+//   - se pointer 1 ja aponta para ele, "endereco; pop pointer 1" some;
+//   - se ele vai ser recalculado e o HackCost diz que compensa, a primeira
+//     conta fica num temp (3 a 7) e as seguintes viram "push temp t";
+//   - no fim de "let a[i] = ..." com pointer 1 ja no endereco que esta na
+//     pilha, "pop temp 0; pop pointer 1; push temp 0; pop that 0" vira
+//     "pop that 0; pop temp 0".
+// Chamadas e escritas em that podem mudar static e this (e chamadas usam os
+// temps); escritas em that nao alcancam local e argument.
+public class ArrayAddressCSE implements VMPass {
+
+    static final int FIRST_TEMP = 3, LAST_TEMP = 7; // temp 0: let com array, 1 e 2: StrengthReduction
+    private static final List<String> LEAF_SEGMENTS = List.of("constant", "local", "argument", "static", "this", "pointer");
+    private static final List<Instruction> STORE_TAIL = List.of(new Instruction("pop", "temp", 0),
+            new Instruction("pop", "pointer", 1), new Instruction("push", "temp", 0), new Instruction("pop", "that", 0));
+    private static final Instruction POP_POINTER_1 = new Instruction("pop", "pointer", 1);
+
+    // base + indice; a soma e comutativa, entao as folhas ficam em ordem
+    private record Address(String first, String second) {
+
+        static Address of(String a, String b) {
+            return a.compareTo(b) <= 0 ? new Address(a, b) : new Address(b, a);
+        }
+
+        boolean uses(String leaf) {
+            return first.equals(leaf) || second.equals(leaf);
+        }
+
+        boolean usesSegment(String segment) {
+            return first.startsWith(segment + " ") || second.startsWith(segment + " ");
+        }
+    }
+
+    @Override
+    public void run(List<Instruction> code) {
+        var cfg = ControlFlowGraph.build(code);
+        for (var block : cfg.blocks())
+            rewrite(block);
+        code.clear();
+        code.addAll(cfg.linearize());
+    }
+
+    private static boolean isLeaf(Instruction instruction) {
+        return instruction.is("push") && LEAF_SEGMENTS.contains(instruction.arg());
+    }
+
+    private static String leaf(Instruction instruction) {
+        return instruction.arg() + " " + instruction.index();
+    }
+
+    // endereco calculado em body[i..i+2], ou null
+    private static Address address(List<Instruction> body, int i) {
+        if (i + 2 >= body.size() || !isLeaf(body.get(i)) || !isLeaf(body.get(i + 1)) || !body.get(i + 2).is("add"))
+            return null;
+        return Address.of(leaf(body.get(i)), leaf(body.get(i + 1)));
+    }
+
+    // a instrucao muda base ou indice do endereco?
+    private static boolean kills(Instruction instruction, Address address) {
+        if (instruction.is("call"))
+            return address.usesSegment("static") || address.usesSegment("this");
+        if (!instruction.is("pop"))
+            return false;
+        if (instruction.is("pop", "pointer", 0))
+            return address.usesSegment("this") || address.uses("pointer 0");
+        if (instruction.is("pop", "that"))
+            return address.usesSegment("static") || address.usesSegment("this");
+        return address.uses(leaf(instruction));
+    }
+
+    private void rewrite(Block block) {
+        var body = block.body();
+        var result = new ArrayList<Instruction>(body.size());
+        var stack = new ArrayList<Address>(); // null: valor que nao e endereco conhecido
+        var temps = new HashMap<Address, Integer>();
+        var free = new TreeSet<Integer>();
+        for (int t = FIRST_TEMP; t <= LAST_TEMP; t++)
+            free.add(t);
+        for (var instruction : body) // ja ocupados (campos do RedundantLoadStore)
+            if ("temp".equals(instruction.arg()))
+                free.remove(instruction.index());
+        Address pointer1 = null;
+
+        int i = 0;
+        while (i < body.size()) {
+            var address = address(body, i);
+            if (address != null) {
+                if (address.equals(pointer1) && i + 3 < body.size() && body.get(i + 3).equals(POP_POINTER_1)) {
+                    i += 4;
+                    continue;
+                }
+                if (temps.containsKey(address)) {
+                    result.add(new Instruction("push", "temp", temps.get(address)));
+                } else {
+                    result.addAll(body.subList(i, i + 3));
+                    if (!free.isEmpty() && worthSaving(body, i, reusesLater(body, i + 3, address))) {
+                        int t = free.pollFirst();
+                        temps.put(address, t);
+                        result.add(new Instruction("pop", "temp", t));
+                        result.add(new Instruction("push", "temp", t));
+                    }
+                }
+                stack.add(address);
+                i += 3;
+                continue;
+            }
+            if (pointer1 != null && stack.size() >= 2 && pointer1.equals(stack.get(stack.size() - 2))
+                    && i + 4 <= body.size() && body.subList(i, i + 4).equals(STORE_TAIL)) {
+                result.add(new Instruction("pop", "that", 0));
+                result.add(new Instruction("pop", "temp", 0));
+                pop(stack);
+                pop(stack);
+                i += 4;
+                continue;
+            }
+
+            var instruction = body.get(i);
+            if (instruction.is("call")) { // a funcao chamada pode usar os temps
+                for (int t : temps.values())
+                    free.add(t);
+                temps.clear();
+            }
+            for (var it = temps.entrySet().iterator(); it.hasNext();) {
+                var entry = it.next();
+                if (kills(instruction, entry.getKey())) {
+                    free.add(entry.getValue());
+                    it.remove();
+                }
+            }
+            for (int k = 0; k < stack.size(); k++)
+                if (stack.get(k) != null && kills(instruction, stack.get(k)))
+                    stack.set(k, null);
+            if (pointer1 != null && kills(instruction, pointer1))
+                pointer1 = null;
+            if (instruction.equals(POP_POINTER_1))
+                pointer1 = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+            simulate(instruction, stack);
+            result.add(instruction);
+            i++;
+        }
+        body.clear();
+        body.addAll(result);
+    }
+
+    // o temp custa "pop temp t; push temp t" uma vez e troca cada conta seguinte
+    // (push; push; add em body[i..i+2]) por um push temp t
+    private static boolean worthSaving(List<Instruction> body, int i, int reuses) {
+        int recompute = HackCost.of(body.subList(i, i + 3));
+        return reuses * (recompute - HackCost.PUSH_DIRECT) > HackCost.POP_DIRECT + HackCost.PUSH_DIRECT;
+    }
+
+    // quantas vezes o endereco sera calculado de novo (sem ser o caso do pointer 1) antes de mudar
+    private static int reusesLater(List<Instruction> body, int from, Address address) {
+        int reuses = 0;
+        boolean inPointer1 = from < body.size() && body.get(from).equals(POP_POINTER_1);
+        for (int i = from; i < body.size(); i++) {
+            if (address.equals(address(body, i))) {
+                boolean feedsPointer1 = i + 3 < body.size() && body.get(i + 3).equals(POP_POINTER_1);
+                if (!(inPointer1 && feedsPointer1))
+                    reuses++;
+                inPointer1 |= feedsPointer1;
+                i += feedsPointer1 ? 3 : 2; // pula a conta e o pop pointer 1 que ela alimenta
+                continue;
+            }
+            var instruction = body.get(i);
+            if (instruction.is("call") || kills(instruction, address))
+                return reuses;
+            if (instruction.equals(POP_POINTER_1) && i > from)
+                inPointer1 = false;
+        }
+        return reuses;
+    }
+
+    private static void simulate(Instruction instruction, List<Address> stack) {
+        switch (instruction.op()) {
+            case "push" -> stack.add(null);
+            case "pop" -> pop(stack);
+            case "neg", "not" -> {
+                pop(stack);
+                stack.add(null);
+            }
+            case "call" -> {
+                for (int k = 0; k < instruction.index(); k++)
+                    pop(stack);
+                stack.add(null);
+            }
+            case "function" -> {
+            }
+            default -> {
+                pop(stack);
+                pop(stack);
+                stack.add(null);
+            }
+        }
+    }
+
+    private static Address pop(List<Address> stack) {
+        return stack.isEmpty() ? null : stack.remove(stack.size() - 1);
+    }
+}
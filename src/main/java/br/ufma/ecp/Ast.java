@@ -0,0 +1,123 @@
+package br.ufma.ecp;
+
+import java.util.Arrays;
+
+import br.ufma.ecp.token.TokenBuffer;
+
+// Arvore de analise em arrays primitivos, montada como ParseListener durante
+// parse(). Os nos ficam em pre-ordem: os filhos de n comecam em n + 1 e o
+// proximo irmao de n esta em end(n), entao percorrer a arvore e andar para
+// frente nos arrays. Folhas guardam o indice do token no TokenBuffer; os
+// indices so valem para o Parser em memoria (no streaming a janela muda).
+public class Ast implements ParseListener {
+
+    private static final NonTerminal[] RULES = NonTerminal.values();
+    private static final byte TERMINAL = -1;
+
+    private TokenBuffer tokens;
+    private byte[] kinds = new byte[256]; // ordinal de NonTerminal ou TERMINAL
+    private int[] tokenIndexes = new int[256]; // -1 nos nao terminais
+    private int[] ends = new int[256]; // fim (exclusivo) da subarvore
+    private int size;
+
+    private int[] open = new int[64]; // nao terminais ainda abertos
+    private int depth;
+    private int maxDepth;
+
+    @Override
+    public void startNonTerminal(NonTerminal rule) {
+        if (depth == open.length)
+            open = Arrays.copyOf(open, depth * 2);
+        open[depth++] = add((byte) rule.ordinal(), -1);
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    // depois de um erro de sintaxe regras internas podem ter ficado abertas: fecha ate rule
+    @Override
+    public void endNonTerminal(NonTerminal rule) {
+        while (depth > 0) {
+            int node = open[--depth];
+            ends[node] = size;
+            if (kinds[node] == rule.ordinal())
+                return;
+        }
+    }
+
+    @Override
+    public void terminal(TokenBuffer tokens, int index) {
+        this.tokens = tokens;
+        int node = add(TERMINAL, index);
+        ends[node] = node + 1;
+    }
+
+    private int add(byte kind, int tokenIndex) {
+        if (size == kinds.length) {
+            kinds = Arrays.copyOf(kinds, size * 2);
+            tokenIndexes = Arrays.copyOf(tokenIndexes, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        kinds[size] = kind;
+        tokenIndexes[size] = tokenIndex;
+        return size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public TokenBuffer tokens() {
+        return tokens;
+    }
+
+    public boolean isTerminal(int node) {
+        return kinds[node] == TERMINAL;
+    }
+
+    // regra do no, null para folhas
+    public NonTerminal rule(int node) {
+        return kinds[node] == TERMINAL ? null : RULES[kinds[node]];
+    }
+
+    public int token(int node) {
+        return tokenIndexes[node];
+    }
+
+    public int end(int node) {
+        return ends[node];
+    }
+
+    // -1 se o no nao tem filhos
+    public int firstChild(int node) {
+        return node + 1 < ends[node] ? node + 1 : -1;
+    }
+
+    // -1 se e o ultimo filho de parent
+    public int nextSibling(int parent, int node) {
+        return ends[node] < ends[parent] ? ends[node] : -1;
+    }
+
+    public int childCount(int node) {
+        int count = 0;
+        for (int child = node + 1; child < ends[node]; child = ends[child])
+            count++;
+        return count;
+    }
+
+    // reenvia os eventos da analise sem reanalisar: XML, outra geracao de codigo...
+    public void replay(ParseListener listener) {
+        int[] stack = new int[maxDepth];
+        int top = 0;
+        for (int node = 0; node < size; node++) {
+            while (top > 0 && ends[stack[top - 1]] <= node)
+                listener.endNonTerminal(RULES[kinds[stack[--top]]]);
+            if (kinds[node] == TERMINAL) {
+                listener.terminal(tokens, tokenIndexes[node]);
+            } else {
+                listener.startNonTerminal(RULES[kinds[node]]);
+                stack[top++] = node;
+            }
+        }
+        while (top > 0)
+            listener.endNonTerminal(RULES[kinds[stack[--top]]]);
+    }
+}
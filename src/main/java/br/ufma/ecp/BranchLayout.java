@@ -0,0 +1,42 @@
+package br.ufma.ecp;
+
+import java.util.List;
+
+import br.ufma.ecp.ControlFlowGraph.Block;
+import br.ufma.ecp.ControlFlowGraph.Exit;
+
+// Reorganiza os desvios de uma subrotina sobre o grafo de fluxo de controle:
+// desvio para desvio vai direto ao destino, blocos vazios ou inalcancaveis
+// somem, goto para o bloco seguinte vira queda e os lacos sao rodados para o
+// teste ficar no fim, com um so if-goto de volta por iteracao.
+public class BranchLayout implements VMPass {
+
+    @Override
+    public void run(List<Instruction> code) {
+        var cfg = ControlFlowGraph.build(code);
+        cfg.threadJumps();
+        cfg.removeUnreachable();
+        rotateLoops(cfg.blocks());
+        code.clear();
+        code.addAll(cfg.linearize());
+    }
+
+    // while: teste (if-goto FIM), corpo ... goto TESTE, FIM. Com a condicao
+    // invertivel o teste vai para depois do corpo e desvia de volta se verdadeiro;
+    // so a entrada no laco paga um goto.
+    static void rotateLoops(List<Block> order) {
+        for (int h = 1; h < order.size(); h++) {
+            var header = order.get(h);
+            if (header.exit() != Exit.BRANCH || !ControlFlowGraph.invertible(header))
+                continue;
+            int exit = order.indexOf(header.target);
+            if (exit <= h + 1 || header.next != order.get(h + 1))
+                continue;
+            var latch = order.get(exit - 1);
+            if (latch.exit() != Exit.GOTO || latch.target != header)
+                continue;
+            order.remove(h);
+            order.add(exit - 1, header);
+        }
+    }
+}
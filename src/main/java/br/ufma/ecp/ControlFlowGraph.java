@@ -0,0 +1,240 @@
+package br.ufma.ecp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Grafo de fluxo de controle de uma subrotina. Cada bloco basico guarda o
+// corpo (sem o rotulo de entrada e sem o desvio final) e a saida explicita,
+// entao a ordem dos blocos pode mudar livremente: linearize() escreve so os
+// desvios e rotulos que a ordem final precisa.
+public class ControlFlowGraph {
+
+    public enum Exit {
+        FALL, // segue para next
+        GOTO, // desvia para target
+        BRANCH, // if-goto target, senao segue para next
+        RETURN
+    }
+
+    public static final class Block {
+        String label; // rotulo original, null se nao tinha
+        final List<Instruction> body = new ArrayList<>();
+        Exit exit = Exit.FALL;
+        Block target;
+        Block next;
+
+        public List<Instruction> body() {
+            return body;
+        }
+
+        public Exit exit() {
+            return exit;
+        }
+
+        public List<Block> successors() {
+            var successors = new ArrayList<Block>(2);
+            if (target != null)
+                successors.add(target);
+            if (next != null && next != target)
+                successors.add(next);
+            return successors;
+        }
+    }
+
+    private record Jump(String op, Block to) {
+    }
+
+    private final List<Block> blocks = new ArrayList<>(); // ordem de layout; o primeiro e a entrada
+
+    public static ControlFlowGraph build(List<Instruction> code) {
+        var cfg = new ControlFlowGraph();
+        var byLabel = new HashMap<String, Block>();
+        var targets = new HashMap<Block, String>();
+        var current = cfg.add(null);
+        boolean ended = false; // depois de goto, if-goto ou return comeca outro bloco
+        for (var instruction : code) {
+            if (instruction.is("label")) {
+                current = cfg.add(instruction.arg());
+                byLabel.put(instruction.arg(), current);
+                ended = false;
+                continue;
+            }
+            if (ended) {
+                current = cfg.add(null);
+                ended = false;
+            }
+            switch (instruction.op()) {
+                case "goto" -> current.exit = Exit.GOTO;
+                case "if-goto" -> current.exit = Exit.BRANCH;
+                case "return" -> current.exit = Exit.RETURN;
+                default -> current.body.add(instruction);
+            }
+            if (instruction.isJump())
+                targets.put(current, instruction.arg());
+            ended = current.exit != Exit.FALL;
+        }
+        for (var entry : targets.entrySet()) {
+            var target = byLabel.get(entry.getValue());
+            if (target == null)
+                throw new IllegalStateException("undefined label " + entry.getValue());
+            entry.getKey().target = target;
+        }
+        return cfg;
+    }
+
+    // novo bloco no fim; o anterior, se continua no fluxo, segue para ele
+    private Block add(String label) {
+        var block = new Block();
+        block.label = label;
+        if (!blocks.isEmpty()) {
+            var previous = blocks.get(blocks.size() - 1);
+            if (previous.exit == Exit.FALL || previous.exit == Exit.BRANCH)
+                previous.next = block;
+        }
+        blocks.add(block);
+        return block;
+    }
+
+    public List<Block> blocks() {
+        return blocks;
+    }
+
+    public Block entry() {
+        return blocks.get(0);
+    }
+
+    // desvio para um bloco vazio que so segue adiante vai direto ao destino final
+    public void threadJumps() {
+        for (var block : blocks) {
+            block.target = skipEmpty(block.target);
+            block.next = skipEmpty(block.next);
+        }
+    }
+
+    private static Block skipEmpty(Block block) {
+        var seen = new HashSet<Block>();
+        while (block != null && block.body.isEmpty() && seen.add(block)) {
+            if (block.exit == Exit.GOTO)
+                block = block.target;
+            else if (block.exit == Exit.FALL && block.next != null)
+                block = block.next;
+            else
+                break;
+        }
+        return block;
+    }
+
+    public Set<Block> reachable() {
+        var reached = new HashSet<Block>();
+        var pending = new ArrayDeque<Block>();
+        reached.add(entry());
+        pending.add(entry());
+        while (!pending.isEmpty())
+            for (var successor : pending.poll().successors())
+                if (reached.add(successor))
+                    pending.add(successor);
+        return reached;
+    }
+
+    public void removeUnreachable() {
+        var reached = reachable();
+        blocks.removeIf(block -> !reached.contains(block));
+    }
+
+    // if-goto testa "diferente de 0"; so da para trocar os lados do desvio se o
+    // valor testado for 0 ou -1 (comparacao, constante 0 ou not de um deles)
+    public static boolean invertible(Block block) {
+        var body = block.body;
+        int last = body.size() - 1;
+        return last >= 0 && (body.get(last).is("not") && isBoolean(body, last - 1) || isBoolean(body, last));
+    }
+
+    // troca target e next; so vale se invertible(block)
+    public static void invert(Block block) {
+        var body = block.body;
+        int last = body.size() - 1;
+        if (body.get(last).is("not") && isBoolean(body, last - 1))
+            body.remove(last);
+        else
+            body.add(new Instruction("not"));
+        var target = block.target;
+        block.target = block.next;
+        block.next = target;
+    }
+
+    private static boolean isBoolean(List<Instruction> body, int i) {
+        if (i < 0)
+            return false;
+        var instruction = body.get(i);
+        if (instruction.is("eq") || instruction.is("gt") || instruction.is("lt")
+                || instruction.is("push", "constant", 0))
+            return true;
+        return instruction.is("not") && isBoolean(body, i - 1);
+    }
+
+    // codigo na ordem atual dos blocos: desvio para o bloco seguinte vira queda,
+    // e um if-goto para o seguinte tem a condicao invertida quando possivel
+    public List<Instruction> linearize() {
+        var exits = new ArrayList<List<Jump>>();
+        var used = new HashSet<Block>();
+        for (int i = 0; i < blocks.size(); i++) {
+            var block = blocks.get(i);
+            var following = i + 1 < blocks.size() ? blocks.get(i + 1) : null;
+            var jumps = new ArrayList<Jump>(2);
+            switch (block.exit) {
+                case RETURN -> jumps.add(new Jump("return", null));
+                case GOTO -> {
+                    if (block.target != following)
+                        jumps.add(new Jump("goto", block.target));
+                }
+                case FALL -> {
+                    if (block.next != null && block.next != following)
+                        jumps.add(new Jump("goto", block.next));
+                }
+                case BRANCH -> {
+                    if (block.next != following && block.target == following && invertible(block))
+                        invert(block);
+                    jumps.add(new Jump("if-goto", block.target));
+                    if (block.next != following)
+                        jumps.add(new Jump("goto", block.next));
+                }
+            }
+            for (var jump : jumps)
+                if (jump.to() != null)
+                    used.add(jump.to());
+            exits.add(jumps);
+        }
+
+        nameLabels(used);
+        var code = new ArrayList<Instruction>();
+        for (int i = 0; i < blocks.size(); i++) {
+            var block = blocks.get(i);
+            if (used.contains(block))
+                code.add(new Instruction("label", block.label));
+            code.addAll(block.body);
+            for (var jump : exits.get(i))
+                code.add(jump.to() == null ? new Instruction(jump.op()) : new Instruction(jump.op(), jump.to().label));
+        }
+        return code;
+    }
+
+    // blocos que viraram alvo sem ter rotulo ganham um que nao colide com os existentes
+    private void nameLabels(Set<Block> targets) {
+        var names = new HashSet<String>();
+        for (var block : blocks)
+            if (block.label != null)
+                names.add(block.label);
+        int n = 0;
+        for (var block : blocks) {
+            if (block.label != null || !targets.contains(block))
+                continue;
+            while (names.contains("BLOCK" + n))
+                n++;
+            block.label = "BLOCK" + n++;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package br.ufma.ecp;
+
+// erro encontrado na compilacao: linha, texto do token onde foi notado e mensagem
+public record Diagnostic(int line, String token, String message) {
+
+    @Override
+    public String toString() {
+        return "line " + line + ": " + message + " (found '" + token + "')";
+    }
+}
@@ -0,0 +1,55 @@
+package br.ufma.ecp;
+
+import java.util.List;
+
+// Custo aproximado de cada instrucao VM em instrucoes Hack executadas, no
+// tradutor VM do curso. Os passes usam para decidir se uma troca compensa e o
+// VMInterpreter dos testes soma o custo do que executou.
+final class HackCost {
+
+    static final int PUSH_CONSTANT = 7;
+    static final int PUSH = 10; // local, argument, this, that: endereco base + indice
+    static final int PUSH_DIRECT = 6; // temp, pointer, static: endereco fixo
+    static final int POP = 12; // local, argument, this, that: endereco guardado em R13
+    static final int POP_DIRECT = 5; // temp, pointer, static
+    static final int BINARY = 5; // add, sub, and, or
+    static final int COMPARE = 12; // eq, gt, lt: desvio para empilhar -1 ou 0
+    static final int UNARY = 3; // neg, not
+    static final int GOTO = 2;
+    static final int IF_GOTO = 5;
+    static final int CALL = 45; // salva retorno, LCL, ARG, THIS, THAT
+    static final int RETURN = 45;
+
+    private HackCost() {
+    }
+
+    static int of(Instruction instruction) {
+        return switch (instruction.op()) {
+            case "push" -> switch (instruction.arg()) {
+                case "constant" -> PUSH_CONSTANT;
+                case "temp", "pointer", "static" -> PUSH_DIRECT;
+                default -> PUSH;
+            };
+            case "pop" -> switch (instruction.arg()) {
+                case "temp", "pointer", "static" -> POP_DIRECT;
+                default -> POP;
+            };
+            case "add", "sub", "and", "or" -> BINARY;
+            case "eq", "gt", "lt" -> COMPARE;
+            case "neg", "not" -> UNARY;
+            case "goto" -> GOTO;
+            case "if-goto" -> IF_GOTO;
+            case "call" -> CALL;
+            case "return" -> RETURN;
+            case "function" -> instruction.index() * PUSH_CONSTANT; // zera os locais
+            default -> 0; // label
+        };
+    }
+
+    static int of(List<Instruction> code) {
+        int cost = 0;
+        for (var instruction : code)
+            cost += of(instruction);
+        return cost;
+    }
+}
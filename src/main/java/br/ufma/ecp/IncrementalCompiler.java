@@ -0,0 +1,181 @@
+package br.ufma.ecp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import br.ufma.ecp.Parser.SubroutineBounds;
+import br.ufma.ecp.token.TokenBuffer;
+import br.ufma.ecp.token.TokenType;
+
+// Compilacao incremental de uma classe para ferramentas de edicao. A cada
+// edicao so os tokens em volta do trecho alterado sao varridos de novo (os
+// demais sao reaproveitados, com inicio e linha deslocados) e, quando a
+// alteracao fica dentro do corpo de uma subrotina, so ela e reanalisada.
+// Qualquer outro caso cai na compilacao completa.
+public class IncrementalCompiler {
+
+    private byte[] source; // bytes [0, length) da classe; o resto e folga para edicoes
+    private int length;
+    private TokenBuffer tokens;
+    private TokenBuffer fresh; // tokens varridos de novo na ultima edicao
+    private Parser parser;
+    private List<SubroutineBounds> subroutines; // null se a ultima analise teve erros
+    private List<String> outputs;
+    private int reparsed;
+
+    public IncrementalCompiler(byte[] source) {
+        this.source = source.clone();
+        this.length = source.length;
+        this.tokens = new Scanner(ByteBuffer.wrap(this.source, 0, length)).tokenize();
+        this.fresh = new TokenBuffer(tokens.source(), 16);
+        fullParse();
+    }
+
+    // troca removed bytes em offset por inserted. Bytes e tokens depois da edicao
+    // andam no lugar (sem copiar o arquivo nem o fluxo de tokens); so os tokens
+    // entre um antes da edicao e o primeiro que volta a coincidir sao varridos.
+    public void edit(int offset, int removed, byte[] inserted) {
+        int delta = inserted.length - removed;
+        int editEnd = offset + inserted.length;
+
+        // recomeca um token antes do primeiro que toca a edicao: ali o scanner esta fora de comentarios
+        int lo = 0, hi = tokens.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (tokens.end(mid) < offset)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        int first = Math.max(0, lo - 1);
+        int from = first > 0 ? tokens.begin(first) : 0;
+        int line = first > 0 ? tokens.line(first) : 1;
+
+        if (length + delta > source.length)
+            source = Arrays.copyOf(source, Math.max(source.length * 2, length + delta));
+        System.arraycopy(source, offset + removed, source, editEnd, length - offset - removed);
+        System.arraycopy(inserted, 0, source, offset, inserted.length);
+        length += delta;
+
+        // ate a troca abaixo, tokens ainda tem inicios e linhas de antes da edicao
+        var input = ByteBuffer.wrap(source, 0, length);
+        var scanner = new Scanner(input.duplicate().position(from), line, tokens.names());
+        fresh.reset(input);
+        int resync = -1;
+        while (true) {
+            int n = fresh.size();
+            scanner.fill(fresh, 1);
+            int begin = fresh.begin(n);
+            if (begin >= editEnd) {
+                resync = find(tokens, begin - delta, first);
+                if (resync >= 0 && tokens.type(resync) == fresh.type(n) && tokens.length(resync) == fresh.length(n))
+                    break;
+                resync = -1;
+            }
+            if (fresh.type(n) == TokenType.EOF)
+                break;
+        }
+
+        int rescanned;
+        int lineDelta = 0;
+        if (resync >= 0) {
+            rescanned = fresh.size() - 1; // o ultimo e o token de sincronizacao, que fica
+            lineDelta = fresh.line(rescanned) - tokens.line(resync);
+        } else {
+            rescanned = fresh.size();
+            resync = tokens.size();
+        }
+        tokens.source(input);
+        tokens.replace(first, resync, fresh, rescanned, delta, lineDelta);
+        reparse(first, resync, first + rescanned - resync);
+    }
+
+    public String vmOutput() {
+        return String.join("", outputs);
+    }
+
+    public List<Diagnostic> errors() {
+        return parser.errors();
+    }
+
+    // quantas subrotinas foram reanalisadas na ultima edicao (-1 = compilacao completa)
+    public int reparsedSubroutines() {
+        return reparsed;
+    }
+
+    TokenBuffer tokens() {
+        return tokens;
+    }
+
+    // tokens antigos [first, resync) viraram outros; os seguintes andaram shift posicoes
+    private void reparse(int first, int resync, int shift) {
+        if (subroutines != null) {
+            for (int i = 0; i < subroutines.size(); i++) {
+                var s = subroutines.get(i);
+                if (s.firstToken() < first && resync < s.endToken()) {
+                    try {
+                        var output = parser.reparseSubroutine(tokens, s.firstToken());
+                        if (!parser.hasErrors() && parser.position() == s.endToken() + shift) {
+                            updateBounds(i, shift, output);
+                            reparsed = 1;
+                            return;
+                        }
+                    } catch (RuntimeException e) {
+                        // corpo invalido ou fronteira mudou: tenta a classe inteira
+                    }
+                    break;
+                }
+            }
+        }
+        fullParse();
+    }
+
+    private void updateBounds(int changed, int shift, String output) {
+        var updated = new ArrayList<SubroutineBounds>();
+        for (int i = 0; i < subroutines.size(); i++) {
+            var s = subroutines.get(i);
+            if (i < changed)
+                updated.add(s);
+            else if (i == changed)
+                updated.add(new SubroutineBounds(s.firstToken(), s.endToken() + shift, 0, 0));
+            else
+                updated.add(new SubroutineBounds(s.firstToken() + shift, s.endToken() + shift, 0, 0));
+        }
+        subroutines = updated;
+        outputs.set(changed, output);
+    }
+
+    private void fullParse() {
+        reparsed = -1;
+        subroutines = null;
+        outputs = new ArrayList<>();
+        parser = new Parser(tokens);
+        parser.parse();
+
+        if (parser.hasErrors())
+            return;
+        var vm = parser.VMOutput();
+        subroutines = new ArrayList<>(parser.subroutines());
+        for (var s : subroutines)
+            outputs.add(vm.substring(s.outputStart(), s.outputEnd()));
+    }
+
+    // indice do token antigo (a partir de from) que comeca em begin, ou -1
+    private static int find(TokenBuffer old, int begin, int from) {
+        int lo = from, hi = old.size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int b = old.begin(mid);
+            if (b < begin)
+                lo = mid + 1;
+            else if (b > begin)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,67 @@
+package br.ufma.ecp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Uma instrucao da maquina virtual, como os passes de otimizacao a enxergam:
+// "push local 2" = (push, local, 2), "label L" = (label, L, -1), "add" = (add, null, -1).
+public record Instruction(String op, String arg, int index) {
+
+    public Instruction(String op) {
+        this(op, null, -1);
+    }
+
+    public Instruction(String op, String arg) {
+        this(op, arg, -1);
+    }
+
+    public static Instruction parse(String line) {
+        String[] words = line.trim().split("\\s+");
+        return switch (words.length) {
+            case 1 -> new Instruction(words[0]);
+            case 2 -> new Instruction(words[0], words[1]);
+            default -> new Instruction(words[0], words[1], Integer.parseInt(words[2]));
+        };
+    }
+
+    // uma instrucao por linha, ignorando linhas vazias
+    public static List<Instruction> parseAll(CharSequence code) {
+        var result = new ArrayList<Instruction>();
+        int start = 0;
+        for (int i = 0; i <= code.length(); i++) {
+            if (i == code.length() || code.charAt(i) == '\n') {
+                var line = code.subSequence(start, i).toString();
+                if (!line.isBlank())
+                    result.add(parse(line));
+                start = i + 1;
+            }
+        }
+        return result;
+    }
+
+    public boolean is(String op) {
+        return this.op.equals(op);
+    }
+
+    public boolean is(String op, String arg) {
+        return this.op.equals(op) && arg.equals(this.arg);
+    }
+
+    public boolean is(String op, String arg, int index) {
+        return is(op, arg) && this.index == index;
+    }
+
+    // goto, if-goto: o alvo esta em arg
+    public boolean isJump() {
+        return op.equals("goto") || op.equals("if-goto");
+    }
+
+    @Override
+    public String toString() {
+        if (arg == null)
+            return op;
+        if (index < 0)
+            return op + " " + arg;
+        return op + " " + arg + " " + index;
+    }
+}
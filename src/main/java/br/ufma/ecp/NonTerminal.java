@@ -0,0 +1,26 @@
+package br.ufma.ecp;
+
+// regras da gramatica que aparecem na arvore de analise, com o nome da tag XML
+public enum NonTerminal {
+    CLASS("class"),
+    CLASS_VAR_DEC("classVarDec"),
+    SUBROUTINE_DEC("subroutineDec"),
+    PARAMETER_LIST("parameterList"),
+    SUBROUTINE_BODY("subroutineBody"),
+    VAR_DEC("varDec"),
+    STATEMENTS("statements"),
+    LET_STATEMENT("letStatement"),
+    IF_STATEMENT("ifStatement"),
+    WHILE_STATEMENT("whileStatement"),
+    DO_STATEMENT("doStatement"),
+    RETURN_STATEMENT("returnStatement"),
+    EXPRESSION("expression"),
+    TERM("term"),
+    EXPRESSION_LIST("expressionList");
+
+    public final String tag;
+
+    NonTerminal(String tag) {
+        this.tag = tag;
+    }
+}
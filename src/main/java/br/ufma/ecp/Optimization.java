@@ -0,0 +1,23 @@
+package br.ufma.ecp;
+
+// Otimizacoes opcionais do Parser. Sem nenhuma, a saida e a mesma do
+// compilador de referencia do nand2tetris (que o corretor compara).
+public enum Optimization {
+    PEEPHOLE,
+    CONSTANT_FOLDING,
+    STRENGTH_REDUCTION,
+    // literais iguais viram o mesmo objeto: quem altera ou libera um literal muda os outros.
+    // Por isso fica fora do -O do App (--pool-strings liga).
+    STRING_POOL,
+    BRANCH_LAYOUT,
+    LOAD_STORE,
+    // usa temp 3 a 7 dentro de um bloco basico
+    ARRAY_CSE,
+    // recursao de cauda da propria subrotina vira laco
+    TAIL_CALL,
+    // so na compilacao de um diretorio (App): funcoes que Main.main nao alcanca saem do .vm
+    DEAD_FUNCTIONS,
+    // so na compilacao de um diretorio (App): chamadas a funcoes pequenas viram o corpo delas.
+    // Troca tamanho do codigo por chamadas a menos, entao fica fora do -O (--inline[=N] liga).
+    INLINE
+}
@@ -0,0 +1,147 @@
+package br.ufma.ecp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import br.ufma.ecp.token.Names;
+import br.ufma.ecp.token.TokenBuffer;
+
+// Tokeniza arquivos grandes em paralelo. Uma pre-varredura barata acompanha
+// apenas strings e comentarios para achar quebras de linha seguras perto de
+// cada fronteira de bloco; cada bloco e varrido por um Scanner proprio e os
+// resultados sao costurados em um unico TokenBuffer, com as linhas corrigidas.
+public class ParallelScanner {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private static final long QUOTES = 0x2222222222222222L;
+    private static final long SLASHES = 0x2F2F2F2F2F2F2F2FL;
+    private static final long STARS = 0x2A2A2A2A2A2A2A2AL;
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+
+    private ParallelScanner() {
+    }
+
+    public static TokenBuffer tokenize(ByteBuffer input) {
+        return tokenize(input, ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    public static TokenBuffer tokenize(ByteBuffer input, ForkJoinPool pool, int chunkSize) {
+        if (pool.getParallelism() < 2 || input.remaining() < 2 * chunkSize)
+            return new Scanner(input).tokenize();
+
+        int[] bounds = splitPoints(input, chunkSize);
+        if (bounds.length == 2)
+            return new Scanner(input).tokenize();
+
+        // uma tabela de nomes para todos os blocos: os ids precisam valer no resultado
+        var names = new Names();
+        List<Callable<Chunk>> tasks = new ArrayList<>();
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            int from = bounds[i];
+            int to = bounds[i + 1];
+            tasks.add(() -> {
+                var scanner = new Scanner(input.duplicate().position(from).limit(to), names);
+                var tokens = scanner.tokenize();
+                return new Chunk(tokens, scanner.line() - 1);
+            });
+        }
+
+        List<Chunk> chunks = new ArrayList<>();
+        try {
+            for (Future<Chunk> f : pool.invokeAll(tasks))
+                chunks.add(f.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+
+        int total = 1;
+        for (Chunk chunk : chunks)
+            total += chunk.tokens.size() - 1;
+
+        // cada bloco termina com EOF; so o ultimo fica
+        var result = new TokenBuffer(input, total);
+        int lineOffset = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            var chunk = chunks.get(i);
+            int count = chunk.tokens.size() - (i < chunks.size() - 1 ? 1 : 0);
+            result.append(chunk.tokens, count, lineOffset);
+            lineOffset += chunk.newlines;
+        }
+        return result;
+    }
+
+    private record Chunk(TokenBuffer tokens, int newlines) {
+    }
+
+    // inicio de cada bloco, mais o fim da entrada. Um bloco so termina logo
+    // depois de um '\n' que nao esta dentro de string nem de comentario de bloco.
+    static int[] splitPoints(ByteBuffer input, int chunkSize) {
+        var words = input.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int begin = input.position();
+        int end = input.limit();
+
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(begin);
+        int target = begin + chunkSize;
+
+        int i = begin;
+        while (i < end && target < end) {
+            // antes do alvo so interessam aspas e barras; depois dele, tambem '\n'
+            i = indexOfAny(words, i, end, QUOTES, SLASHES, i >= target ? NEWLINES : SLASHES);
+            if (i >= end)
+                break;
+            byte b = input.get(i);
+            if (b == '"') {
+                i = indexOfAny(words, i + 1, end, QUOTES, QUOTES, QUOTES) + 1;
+            } else if (b == '/' && i + 1 < end && input.get(i + 1) == '/') {
+                i = indexOfAny(words, i + 2, end, NEWLINES, NEWLINES, NEWLINES);
+            } else if (b == '/' && i + 1 < end && input.get(i + 1) == '*') {
+                i += 2;
+                do {
+                    i = indexOfAny(words, i, end, STARS, STARS, STARS) + 1;
+                } while (i < end && input.get(i) != '/');
+                i++;
+            } else {
+                if (b == '\n') {
+                    bounds.add(i + 1);
+                    target = i + 1 + chunkSize;
+                }
+                i++;
+            }
+        }
+
+        bounds.add(end);
+        int[] result = new int[bounds.size()];
+        for (int k = 0; k < result.length; k++)
+            result[k] = bounds.get(k);
+        return result;
+    }
+
+    // posicao do proximo byte igual a algum dos tres padroes, ou end
+    private static int indexOfAny(ByteBuffer words, int from, int end, long a, long b, long c) {
+        int i = from;
+        for (; i + 8 <= end; i += 8) {
+            long word = words.getLong(i);
+            long found = Scanner.matchBytes(word, a) | Scanner.matchBytes(word, b) | Scanner.matchBytes(word, c);
+            if (found != 0)
+                return i + (Long.numberOfTrailingZeros(found) >>> 3);
+        }
+        for (; i < end; i++) {
+            byte x = words.get(i);
+            if (x == (byte) a || x == (byte) b || x == (byte) c)
+                return i;
+        }
+        return end;
+    }
+
+}
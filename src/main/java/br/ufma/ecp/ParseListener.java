@@ -0,0 +1,22 @@
+package br.ufma.ecp;
+
+import br.ufma.ecp.token.TokenBuffer;
+
+// Eventos da arvore de analise. O Parser so gera codigo VM; quem precisa da
+// arvore (XML para o corretor, ferramentas) registra um listener com setListener.
+public interface ParseListener {
+
+    // padrao do Parser: nenhum trabalho alem do codigo VM
+    ParseListener NONE = new ParseListener() {
+    };
+
+    default void startNonTerminal(NonTerminal rule) {
+    }
+
+    default void endNonTerminal(NonTerminal rule) {
+    }
+
+    // token consumido: tokens.type(index), tokens.lexeme(index)...
+    default void terminal(TokenBuffer tokens, int index) {
+    }
+}
@@ -10,6 +10,7 @@ import static br.ufma.ecp.token.TokenType.CONSTRUCTOR;
 import static br.ufma.ecp.token.TokenType.DO;
 import static br.ufma.ecp.token.TokenType.DOT;
 import static br.ufma.ecp.token.TokenType.ELSE;
+import static br.ufma.ecp.token.TokenType.EOF;
 import static br.ufma.ecp.token.TokenType.EQ;
 import static br.ufma.ecp.token.TokenType.FALSE;
 import static br.ufma.ecp.token.TokenType.FIELD;
@@ -17,6 +18,7 @@ import static br.ufma.ecp.token.TokenType.FUNCTION;
 import static br.ufma.ecp.token.TokenType.GT;
 import static br.ufma.ecp.token.TokenType.IDENT;
 import static br.ufma.ecp.token.TokenType.IF;
+import static br.ufma.ecp.token.TokenType.ILLEGAL;
 import static br.ufma.ecp.token.TokenType.INT;
 import static br.ufma.ecp.token.TokenType.LBRACE;
 import static br.ufma.ecp.token.TokenType.LBRACKET;
@@ -44,196 +46,615 @@ import static br.ufma.ecp.token.TokenType.VAR;
 import static br.ufma.ecp.token.TokenType.VOID;
 import static br.ufma.ecp.token.TokenType.WHILE;
 
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
 import br.ufma.ecp.SymbolTable.Kind;
 import br.ufma.ecp.SymbolTable.Symbol;
 import br.ufma.ecp.VMWriter.Command;
 import br.ufma.ecp.VMWriter.Segment;
-import br.ufma.ecp.token.Token;
+import br.ufma.ecp.token.Names;
+import br.ufma.ecp.token.TokenBuffer;
 import br.ufma.ecp.token.TokenType;
 
 public class Parser {
 
+    // desvia da regra com erro ate o ponto de recuperacao; sem stack trace
     private static class ParseError extends RuntimeException {
+        final Diagnostic diagnostic;
+
+        ParseError(Diagnostic diagnostic) {
+            super(diagnostic.toString(), null, false, false);
+            this.diagnostic = diagnostic;
+        }
     }
 
-    private Scanner scan;
-    private Token currentToken;
-    private Token peekToken;
-    private StringBuilder xmlOutput = new StringBuilder();
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int STREAM_BATCH = 4096;
+    private static final int PARALLEL_MIN_TOKENS = 1 << 14;
+    static final int NOT_CONSTANT = Integer.MIN_VALUE; // valor de expressao que nao e constante
+    static final int POOLED_NAMES_LIMIT = 1 << 16; // nomes acumulados no Scanner proprio antes de esvazia-lo
+    static final int MAX_POOLED_STRINGS = 64; // por classe; o App confere o programa todo (WholeProgram.unpoolStrings)
+    private static final Peephole PEEPHOLE = new Peephole();
+    private static final BranchLayout BRANCH_LAYOUT = new BranchLayout();
+    private static final RedundantLoadStore LOAD_STORE = new RedundantLoadStore();
+    private static final ArrayAddressCSE ARRAY_CSE = new ArrayAddressCSE();
+    private static final TailCall TAIL_CALL = new TailCall();
+    // "" e palavras reservadas tem o mesmo id em toda tabela de nomes (Names)
+    private static final Names PREDEFINED_NAMES = new Names();
+    private static final int THIS_NAME = PREDEFINED_NAMES.intern("this");
+    private static final int EMPTY_NAME = PREDEFINED_NAMES.intern("");
+    private static final int[] KEYWORD_NAMES = keywordNames();
+
+    // conjuntos de tokens como bits sobre TokenType.ordinal(): FIRST de cada regra
+    // e FOLLOW onde a regra pode ser vazia. Consultar um conjunto nao aloca nada.
+    static final long CLASS_VAR_DEC_FIRST = set(STATIC, FIELD);
+    static final long SUBROUTINE_DEC_FIRST = set(CONSTRUCTOR, FUNCTION, METHOD);
+    static final long TYPE_FIRST = set(INT, CHAR, BOOLEAN, IDENT);
+    static final long RETURN_TYPE_FIRST = TYPE_FIRST | set(VOID);
+    static final long STATEMENT_FIRST = set(LET, IF, WHILE, DO, RETURN);
+    static final long BINARY_OPS = set(PLUS, MINUS, ASTERISK, SLASH, LT, GT, EQ, AND, OR);
+    static final long UNARY_OPS = set(MINUS, NOT);
+    static final long KEYWORD_CONSTANTS = set(TRUE, FALSE, NULL);
+    static final long CALL_FOLLOW = set(LPAREN, DOT); // depois do primeiro nome de subroutineCall
+    static final long PARAMETER_LIST_FOLLOW = set(RPAREN);
+    static final long EXPRESSION_LIST_FOLLOW = set(RPAREN);
+    static final long STATEMENTS_FOLLOW = set(RBRACE);
+
+    private static final ThreadLocal<Parser> POOL = ThreadLocal.withInitial(() -> new Parser(ByteBuffer.allocate(0)));
+
+    private TokenBuffer tokens;
+    private Scanner scanner; // Scanner e buffer proprios, reaproveitados por reset(ByteBuffer)
+    private TokenBuffer ownTokens;
+    private Scanner stream; // so no modo streaming: tokens e uma janela reabastecida por ele
+    private int streamBatch;
+    private int currentIndex = -1;
+    private int peekIndex = 0;
+    private ParseListener listener = ParseListener.NONE;
     private VMWriter vmWriter = new VMWriter();
     private SymbolTable symTable = new SymbolTable();
+    private Names names; // a do fluxo de tokens atual
     private int ifLabelNum = 0 ;
     private int whileLabelNum = 0;
-    private String className = "";
+    private int stringLabelNum = 0;
+    private int className = EMPTY_NAME;
+    private List<Diagnostic> errors = new ArrayList<>();
+    private int lastErrorToken = -1;
+    private Set<Optimization> optimizations = EnumSet.noneOf(Optimization.class);
+    private List<VMPass> extraPasses = new ArrayList<>();
+    private List<VMPass> passes = List.of(); // aplicados ao fim de cada subrotina
+    private int removedInstructions;
+    private boolean folding; // CONSTANT_FOLDING
+    private boolean reducing; // STRENGTH_REDUCTION
+    private boolean pooling; // STRING_POOL
+    private final Map<String, Integer> stringSlots = new HashMap<>(); // literal -> posicao em pooledStrings
+    private final List<String> pooledStrings = new ArrayList<>();
+
+    // tokens [firstToken, endToken) e trecho [outputStart, outputEnd) do codigo VM de cada subrotina
+    record SubroutineBounds(int firstToken, int endToken, int outputStart, int outputEnd) {
+    }
+
+    private List<SubroutineBounds> subroutines = new ArrayList<>();
 
     public Parser(byte[] input) {
-        scan = new Scanner(input);
-        vmWriter = new VMWriter();
-        
-        nextToken();
+        this(ByteBuffer.wrap(input));
+    }
+
+    public Parser(ByteBuffer input) {
+        reset(input);
+    }
+
+    public Parser(TokenBuffer tokens) {
+        reset(tokens);
+    }
+
+    // compila a partir de um canal: a entrada passa por uma janela de bytes fixa e
+    // os tokens por uma janela de STREAM_BATCH tokens. A saida VM e os nomes
+    // internados ainda crescem com o arquivo. O canal tem que ser bloqueante (ver
+    // Scanner); quem abriu o canal o fecha.
+    public Parser(ReadableByteChannel input) {
+        this(input, STREAM_BUFFER_SIZE, STREAM_BATCH);
+    }
+
+    Parser(ReadableByteChannel input, int bufferSize, int batch) {
+        this.stream = new Scanner(input, bufferSize);
+        this.streamBatch = batch;
+        this.tokens = new TokenBuffer(batch + 1);
+        stream.fill(tokens, batch);
+        names = tokens.names();
+        vmWriter.names(names);
+    }
+
+    // Parser da thread atual, ja reposicionado em input. Buffers, tabelas e saida
+    // crescidos em arquivos anteriores sao reaproveitados; a configuracao nao
+    // (volta sem otimizacoes nem passes extras, como um Parser novo). O objeto (e
+    // o que ele devolve, como errors()) so vale ate o proximo pooled() na mesma thread.
+    public static Parser pooled(ByteBuffer input) {
+        var parser = POOL.get();
+        parser.reset(input);
+        return parser;
+    }
+
+    // prepara o Parser para outra classe, tokenizada pelo proprio Scanner dele
+    public void reset(ByteBuffer input) {
+        if (scanner == null) {
+            scanner = new Scanner(input);
+            ownTokens = new TokenBuffer(input);
+        } else {
+            // a tabela de nomes segue para o proximo arquivo (e o id de um nome ja
+            // visto se repete); so e esvaziada quando passa do limite
+            if (scanner.names().size() > POOLED_NAMES_LIMIT)
+                scanner.names().reset();
+            scanner.reset(input);
+            ownTokens.reset(input);
+        }
+        scanner.fill(ownTokens, Integer.MAX_VALUE);
+        reset(ownTokens);
+    }
+
+    public void reset(TokenBuffer tokens) {
+        this.tokens = tokens;
+        names = tokens.names();
+        vmWriter.names(names);
+        stream = null;
+        currentIndex = -1;
+        peekIndex = 0;
+        listener = ParseListener.NONE;
+        vmWriter.reset();
+        symTable.reset();
+        ifLabelNum = 0;
+        whileLabelNum = 0;
+        stringLabelNum = 0;
+        stringSlots.clear();
+        pooledStrings.clear();
+        className = EMPTY_NAME;
+        errors.clear();
+        lastErrorToken = -1;
+        subroutines.clear();
+        removedInstructions = 0;
+        // configuracao padrao: quem reusa o Parser escolhe de novo (setOptimizations, addPass)
+        optimizations.clear();
+        folding = false;
+        reducing = false;
+        pooling = false;
+        extraPasses.clear();
+        passes = List.of();
+    }
+
+    public void setOptimizations(Set<Optimization> optimizations) {
+        this.optimizations = optimizations.isEmpty() ? EnumSet.noneOf(Optimization.class) : EnumSet.copyOf(optimizations);
+        folding = this.optimizations.contains(Optimization.CONSTANT_FOLDING);
+        reducing = this.optimizations.contains(Optimization.STRENGTH_REDUCTION);
+        pooling = this.optimizations.contains(Optimization.STRING_POOL);
+        updatePasses();
+    }
+
+    // passo extra, depois dos das otimizacoes (ex.: um Peephole com outras regras)
+    public void addPass(VMPass pass) {
+        extraPasses.add(pass);
+        updatePasses();
+    }
+
+    // instrucoes VM eliminadas pelos passes desde o ultimo reset
+    public int removedInstructions() {
+        return removedInstructions;
+    }
+
+    private void updatePasses() {
+        var passes = new ArrayList<VMPass>();
+        // primeiro: os outros passes ja veem o laco
+        if (optimizations.contains(Optimization.TAIL_CALL))
+            passes.add(TAIL_CALL);
+        if (optimizations.contains(Optimization.PEEPHOLE))
+            passes.add(PEEPHOLE);
+        if (optimizations.contains(Optimization.LOAD_STORE))
+            passes.add(LOAD_STORE);
+        if (optimizations.contains(Optimization.ARRAY_CSE))
+            passes.add(ARRAY_CSE);
+        if (optimizations.contains(Optimization.BRANCH_LAYOUT))
+            passes.add(BRANCH_LAYOUT);
+        passes.addAll(extraPasses);
+        this.passes = List.copyOf(passes);
     }
 
     private void nextToken() {
-        currentToken = peekToken;
-        peekToken = scan.nextToken();
+        currentIndex = peekIndex;
+        if (stream != null && peekIndex == tokens.size() - 1 && tokens.type(peekIndex) != EOF) {
+            tokens.retainFrom(currentIndex);
+            currentIndex = peekIndex = 0;
+            stream.fill(tokens, streamBatch);
+        }
+        if (peekIndex < tokens.size() - 1) // o ultimo token e sempre EOF
+            peekIndex++;
+    }
+
+    // id em Names do IDENT atual, ou da palavra reservada quando o tipo e int/char/boolean
+    private int currentName() {
+        if (currentType() == IDENT)
+            return tokens.value(currentIndex);
+        return KEYWORD_NAMES[currentType().ordinal()];
     }
 
+    private String currentLexeme() {
+        return tokens.lexeme(currentIndex);
+    }
+
+    private TokenType currentType() {
+        return tokens.type(currentIndex);
+    }
+
+    // erros sintaticos e semanticos nao interrompem a analise: ficam em errors()
     public void parse() {
-        parseClass();
+        try {
+            parseClass();
+        } catch (ParseError e) {
+            // erro fora de declaracoes (ex.: falta "class"): ja registrado
+        }
+    }
+
+    public List<Diagnostic> errors() {
+        return errors;
+    }
+
+    public boolean hasErrors() {
+        return !errors.isEmpty();
+    }
+
+    // analisa guardando a arvore em arrays, para passes e geradores que a
+    // percorrem varias vezes; substitui o listener registrado
+    public Ast parseAst() {
+        var ast = new Ast();
+        setListener(ast);
+        parse();
+        return ast;
+    }
+
+    // Gera o codigo das subrotinas em paralelo no pool. Cada tarefa usa uma copia
+    // do escopo de classe e contadores de rotulo proprios, e os trechos sao
+    // concatenados na ordem do fonte: a saida e identica a de parse(). Classes
+    // pequenas, streaming, listener registrado ou qualquer erro usam parse().
+    public void parse(ForkJoinPool pool) {
+        parse(pool, PARALLEL_MIN_TOKENS);
+    }
+
+    void parse(ForkJoinPool pool, int minTokens) {
+        // o pool de strings numera os literais na ordem da classe: so em serie
+        if (stream != null || listener != ParseListener.NONE || pool.getParallelism() < 2
+                || tokens.size() < minTokens || pooling) {
+            parse();
+            return;
+        }
+        try {
+            if (parseClassParallel(pool))
+                return;
+        } catch (ParseError e) {
+            // diagnosticos saem da analise serial abaixo
+        }
+        reset(tokens);
+        parse();
     }
 
     void parseClass() {
-        printNonTerminal("class");
+        parseClassHeader();
+
+        subroutines.clear();
+        while (peekTokenIn(SUBROUTINE_DEC_FIRST)) {
+            int firstToken = peekIndex;
+            int outputStart = vmWriter.length();
+            try {
+                parseSubroutineDec();
+                subroutines.add(new SubroutineBounds(firstToken, peekIndex, outputStart, vmWriter.length()));
+            } catch (ParseError e) {
+                skipSubroutine();
+            }
+        }
+        writeStringBuilders();
+
+        expectPeek(RBRACE);
+
+        listener.endNonTerminal(NonTerminal.CLASS);
+    }
+
+    // 'class' className '{' classVarDec*
+    private void parseClassHeader() {
+        listener.startNonTerminal(NonTerminal.CLASS);
         expectPeek(CLASS);
         expectPeek(IDENT);
-        className = currentToken.lexeme;
+        className = currentName();
         expectPeek(LBRACE);
 
-        while (peekTokenIs(STATIC) || peekTokenIs(FIELD)) {
-            parseClassVarDec();
+        while (peekTokenIn(CLASS_VAR_DEC_FIRST)) {
+            try {
+                parseClassVarDec();
+            } catch (ParseError e) {
+                synchronize(CLASS_VAR_DEC_FIRST | SUBROUTINE_DEC_FIRST);
+            }
+        }
+    }
+
+    // false se for preciso refazer em serie (erro ou fronteiras que nao batem)
+    private boolean parseClassParallel(ForkJoinPool pool) {
+        parseClassHeader();
+        int[] starts = subroutineStarts(peekIndex);
+        if (hasErrors() || starts == null)
+            return false;
+
+        int count = starts.length - 1;
+        int parts = Math.min(count, pool.getParallelism() * 4);
+        List<Callable<Parser>> tasks = new ArrayList<>();
+        for (int t = 0; t < parts; t++) {
+            int from = (int) ((long) count * t / parts);
+            int to = (int) ((long) count * (t + 1) / parts);
+            tasks.add(() -> compileSubroutines(starts, from, to));
         }
 
-        while (peekTokenIs(FUNCTION) || peekTokenIs(CONSTRUCTOR) || peekTokenIs(METHOD)) {
-            parseSubroutineDec();
+        List<Parser> workers = new ArrayList<>();
+        try {
+            for (Future<Parser> f : pool.invokeAll(tasks))
+                workers.add(f.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+
+        subroutines.clear();
+        for (Parser worker : workers) {
+            if (worker == null || worker.hasErrors())
+                return false;
+            int base = vmWriter.length();
+            vmWriter.append(worker.vmWriter.vmOutput());
+            removedInstructions += worker.removedInstructions;
+            for (var s : worker.subroutines)
+                subroutines.add(new SubroutineBounds(s.firstToken(), s.endToken(), base + s.outputStart(),
+                        base + s.outputEnd()));
         }
 
+        currentIndex = starts[count] - 1;
+        peekIndex = starts[count];
         expectPeek(RBRACE);
+        listener.endNonTerminal(NonTerminal.CLASS);
+        return !hasErrors();
+    }
+
+    // subrotinas [from, to) de starts em um Parser auxiliar; null se alguma nao terminar onde devia
+    private Parser compileSubroutines(int[] starts, int from, int to) {
+        var worker = new Parser(tokens);
+        worker.className = className;
+        worker.symTable = symTable.copy();
+        worker.optimizations = optimizations;
+        worker.passes = passes;
+        worker.folding = folding;
+        worker.reducing = reducing;
+        try {
+            for (int i = from; i < to; i++) {
+                worker.currentIndex = starts[i] - 1;
+                worker.peekIndex = starts[i];
+                int outputStart = worker.vmWriter.length();
+                worker.parseSubroutineDec();
+                if (worker.peekIndex != starts[i + 1])
+                    return null;
+                worker.subroutines.add(new SubroutineBounds(starts[i], starts[i + 1], outputStart,
+                        worker.vmWriter.length()));
+            }
+        } catch (ParseError e) {
+            return null;
+        }
+        return worker;
+    }
+
+    // pre-varredura casando chaves: inicio de cada subrotina a partir de from e,
+    // por ultimo, o '}' da classe; null se a estrutura nao fecha
+    private int[] subroutineStarts(int from) {
+        int[] starts = new int[16];
+        int count = 0;
+        int i = from;
+        while ((SUBROUTINE_DEC_FIRST & 1L << tokens.type(i).ordinal()) != 0) {
+            if (count + 1 >= starts.length)
+                starts = Arrays.copyOf(starts, starts.length * 2);
+            starts[count++] = i;
+            while (tokens.type(i) != LBRACE) {
+                if (tokens.type(i) == EOF)
+                    return null;
+                i++;
+            }
+            int depth = 0;
+            do {
+                var type = tokens.type(i++);
+                if (type == LBRACE)
+                    depth++;
+                else if (type == RBRACE)
+                    depth--;
+                else if (type == EOF)
+                    return null;
+            } while (depth > 0);
+        }
+        if (count == 0 || tokens.type(i) != RBRACE)
+            return null;
+        starts[count++] = i;
+        return Arrays.copyOf(starts, count);
+    }
+
+    // reanalisa so a subrotina que comeca no token index de um novo fluxo de tokens,
+    // mantendo o escopo de classe da ultima parseClass; devolve o codigo VM dela
+    String reparseSubroutine(TokenBuffer tokens, int index) {
+        this.tokens = tokens;
+        currentIndex = index - 1;
+        peekIndex = index;
+        var out = vmWriter;
+        vmWriter = new VMWriter();
+        vmWriter.names(names);
+        try {
+            parseSubroutineDec();
+            return vmWriter.vmOutput();
+        } finally {
+            vmWriter = out;
+        }
+    }
+
+    // proximo token ainda nao consumido
+    int position() {
+        return peekIndex;
+    }
 
-        printNonTerminal("/class");
+    List<SubroutineBounds> subroutines() {
+        return subroutines;
     }
 
 
     void parseClassVarDec() {
-        printNonTerminal("classVarDec");
-        expectPeek(FIELD, STATIC);
+        listener.startNonTerminal(NonTerminal.CLASS_VAR_DEC);
+        expectPeek(CLASS_VAR_DEC_FIRST);
 
         SymbolTable.Kind kind = Kind.STATIC;
         if (currentTokenIs(FIELD))
             kind = Kind.FIELD;
 
         // 'int' | 'char' | 'boolean' | className
-        expectPeek(INT, CHAR, BOOLEAN, IDENT);
-        String type = currentToken.lexeme;
+        expectPeek(TYPE_FIRST);
+        int type = currentName();
 
         expectPeek(IDENT);
-        String name = currentToken.lexeme;
+        int name = currentName();
 
-        symTable.define(name, type, kind);
+        define(name, type, kind);
         while (peekTokenIs(COMMA)) {
             expectPeek(COMMA);
             expectPeek(IDENT);
 
-            name = currentToken.lexeme;
-            symTable.define(name, type, kind);
+            name = currentName();
+            define(name, type, kind);
         }
 
         expectPeek(SEMICOLON);
-        printNonTerminal("/classVarDec");
+        listener.endNonTerminal(NonTerminal.CLASS_VAR_DEC);
     }
 
     void parseSubroutineDec() {
-        printNonTerminal("subroutineDec");
+        listener.startNonTerminal(NonTerminal.SUBROUTINE_DEC);
+        int outputStart = vmWriter.length();
 
         ifLabelNum = 0;
         whileLabelNum = 0;
+        stringLabelNum = 0;
 
         symTable.startSubroutine();
 
-        expectPeek(CONSTRUCTOR, FUNCTION, METHOD);
-        var subroutineType = currentToken.type;
+        expectPeek(SUBROUTINE_DEC_FIRST);
+        var subroutineType = currentType();
 
         if (subroutineType == METHOD) {
-            symTable.define("this", className, Kind.ARG);
+            symTable.define(THIS_NAME, className, Kind.ARG);
         }
 
         // 'int' | 'char' | 'boolean' | className
-        expectPeek(VOID, INT, CHAR, BOOLEAN, IDENT);
+        expectPeek(RETURN_TYPE_FIRST);
         expectPeek(IDENT);
 
-        var functionName = className + "." + currentToken.lexeme;
+        var functionName = currentName();
 
         expectPeek(LPAREN);
         parseParameterList();
         expectPeek(RPAREN);
         parseSubroutineBody(functionName, subroutineType);
+        if (!passes.isEmpty() && !hasErrors())
+            removedInstructions += vmWriter.optimize(outputStart, passes);
 
-        printNonTerminal("/subroutineDec");
+        listener.endNonTerminal(NonTerminal.SUBROUTINE_DEC);
     }
 
     void parseParameterList() {
-        printNonTerminal("parameterList");
+        listener.startNonTerminal(NonTerminal.PARAMETER_LIST);
 
         SymbolTable.Kind kind = Kind.ARG;
 
-        if (!peekTokenIs(RPAREN)) // verifica se tem pelo menos uma expressao
+        if (!peekTokenIn(PARAMETER_LIST_FOLLOW)) // verifica se tem pelo menos uma expressao
         {
-            expectPeek(INT, CHAR, BOOLEAN, IDENT);
-            String type = currentToken.lexeme;
+            expectPeek(TYPE_FIRST);
+            int type = currentName();
 
             expectPeek(IDENT);
-            String name = currentToken.lexeme;
-            symTable.define(name, type, kind);
+            int name = currentName();
+            define(name, type, kind);
 
             while (peekTokenIs(COMMA)) {
                 expectPeek(COMMA);
-                expectPeek(INT, CHAR, BOOLEAN, IDENT);
-                type = currentToken.lexeme;
+                expectPeek(TYPE_FIRST);
+                type = currentName();
 
                 expectPeek(IDENT);
-                name = currentToken.lexeme;
+                name = currentName();
 
-                symTable.define(name, type, kind);
+                define(name, type, kind);
             }
 
         }
 
-        printNonTerminal("/parameterList");
+        listener.endNonTerminal(NonTerminal.PARAMETER_LIST);
     }
 
     void parseSubroutineBody() {
-        printNonTerminal("subroutineBody");
+        listener.startNonTerminal(NonTerminal.SUBROUTINE_BODY);
         expectPeek(LBRACE);
         while (peekTokenIs(VAR)) {
             parseVarDec();
         }
         parseStatements();
         expectPeek(RBRACE);
-        printNonTerminal("/subroutineBody");
+        listener.endNonTerminal(NonTerminal.SUBROUTINE_BODY);
     }
 
     void parseVarDec() {
-        printNonTerminal("varDec");
+        listener.startNonTerminal(NonTerminal.VAR_DEC);
         expectPeek(VAR);
 
         SymbolTable.Kind kind = Kind.VAR;
 
         // 'int' | 'char' | 'boolean' | className
-        expectPeek(INT, CHAR, BOOLEAN, IDENT);
-        String type = currentToken.lexeme;
+        expectPeek(TYPE_FIRST);
+        int type = currentName();
 
         expectPeek(IDENT);
-        String name = currentToken.lexeme;
-        symTable.define(name, type, kind);
+        int name = currentName();
+        define(name, type, kind);
 
         while (peekTokenIs(COMMA)) {
             expectPeek(COMMA);
             expectPeek(IDENT);
 
-            name = currentToken.lexeme;
-            symTable.define(name, type, kind);
+            name = currentName();
+            define(name, type, kind);
 
         }
 
         expectPeek(SEMICOLON);
-        printNonTerminal("/varDec");
+        listener.endNonTerminal(NonTerminal.VAR_DEC);
     }
 
     public void parseStatements() {
-        printNonTerminal("statements");
-        while (peekTokenIs(LET, IF, WHILE, DO, RETURN)) {
-            parseStatement();
+        listener.startNonTerminal(NonTerminal.STATEMENTS);
+        // constructor/function/method aqui e sinal de '}' faltando: para e deixa o
+        // expectPeek(RBRACE) de quem chamou reportar, para parseClass seguir na proxima
+        while (!peekTokenIn(STATEMENTS_FOLLOW | SUBROUTINE_DEC_FIRST) && !peekTokenIs(EOF)) {
+            try {
+                parseStatement();
+            } catch (ParseError e) {
+                synchronize(STATEMENT_FIRST | STATEMENTS_FOLLOW | SUBROUTINE_DEC_FIRST);
+            }
         }
-        printNonTerminal("/statements");
+        listener.endNonTerminal(NonTerminal.STATEMENTS);
     }
 
     public void parseStatement() {
@@ -248,7 +669,7 @@ public class Parser {
         } else if (peekTokenIs(RETURN)) {
             parseReturn();
         } else {
-            throw error(peekToken, "Expected a statement");
+            throw error(peekIndex, "expected a statement");
         }
     }
 
@@ -256,17 +677,18 @@ public class Parser {
 
         var isArray = false;
 
-        printNonTerminal("letStatement");
+        listener.startNonTerminal(NonTerminal.LET_STATEMENT);
         expectPeek(TokenType.LET);
         expectPeek(TokenType.IDENT);
 
-        var symbol = symTable.resolve(currentToken.lexeme);
+        var symbol = resolve(currentName());
 
         if (peekTokenIs(TokenType.LBRACKET)) { // array
             expectPeek(LBRACKET);
             parseExpression();
             
-            vmWriter.writePush(kind2Segment(symbol.kind()), symbol.index());
+            if (symbol != null)
+                vmWriter.writePush(kind2Segment(symbol.kind()), symbol.index());
             vmWriter.writeArithmetic(Command.ADD);
     
             expectPeek(RBRACKET);
@@ -286,17 +708,17 @@ public class Parser {
             vmWriter.writePop(Segment.THAT, 0);    // Store right hand side evaluation in THAT 0.
     
 
-        } else {
+        } else if (symbol != null) {
             vmWriter.writePop(kind2Segment(symbol.kind()), symbol.index());
         }
 
 
         expectPeek(TokenType.SEMICOLON);
-        printNonTerminal("/letStatement");
+        listener.endNonTerminal(NonTerminal.LET_STATEMENT);
     }
 
     void parseIf() {
-        printNonTerminal("ifStatement");
+        listener.startNonTerminal(NonTerminal.IF_STATEMENT);
 
         var labelTrue = "IF_TRUE" + ifLabelNum;
         var labelFalse = "IF_FALSE" + ifLabelNum;
@@ -331,11 +753,11 @@ public class Parser {
             vmWriter.writeLabel(labelEnd);
         }
 
-        printNonTerminal("/ifStatement");
+        listener.endNonTerminal(NonTerminal.IF_STATEMENT);
     }
 
     void parseWhile() {
-        printNonTerminal("whileStatement");
+        listener.startNonTerminal(NonTerminal.WHILE_STATEMENT);
 
         var labelTrue = "WHILE_EXP" + whileLabelNum;
         var labelFalse = "WHILE_END" + whileLabelNum;
@@ -358,22 +780,22 @@ public class Parser {
         vmWriter.writeLabel(labelFalse); // Breaks out of while loop because ~(condition) is true
 
         expectPeek(RBRACE);
-        printNonTerminal("/whileStatement");
+        listener.endNonTerminal(NonTerminal.WHILE_STATEMENT);
     }
 
     void parseDo() {
-        printNonTerminal("doStatement");
+        listener.startNonTerminal(NonTerminal.DO_STATEMENT);
         expectPeek(DO);
         expectPeek(IDENT);
         parseSubroutineCall();
         expectPeek(SEMICOLON);
         vmWriter.writePop(Segment.TEMP, 0);
 
-        printNonTerminal("/doStatement");
+        listener.endNonTerminal(NonTerminal.DO_STATEMENT);
     }
 
     void parseReturn() {
-        printNonTerminal("returnStatement");
+        listener.startNonTerminal(NonTerminal.RETURN_STATEMENT);
         expectPeek(RETURN);
         if (!peekTokenIs(SEMICOLON)) {
             parseExpression();
@@ -383,80 +805,107 @@ public class Parser {
         expectPeek(SEMICOLON);
         vmWriter.writeReturn();
 
-        printNonTerminal("/returnStatement");
+        listener.endNonTerminal(NonTerminal.RETURN_STATEMENT);
     }
 
-    void parseExpression() {
-        printNonTerminal("expression");
-        parseTerm();
-        while (peekTokenIs(PLUS, MINUS, ASTERISK, SLASH, LT, GT, EQ, AND, OR)) {
-            var ope = peekToken.type;
-            expectPeek(peekToken.type);
-            parseTerm();
-            compileOperators(ope);
+    // devolve o valor se o codigo gerado for so uma constante, senao NOT_CONSTANT
+    int parseExpression() {
+        listener.startNonTerminal(NonTerminal.EXPRESSION);
+        int start = vmWriter.length();
+        int calls = vmWriter.calls();
+        int value = parseTerm();
+        while (peekTokenIn(BINARY_OPS)) {
+            var ope = tokens.type(peekIndex);
+            expectPeek(ope);
+            int rightStart = vmWriter.length();
+            int rightCalls = vmWriter.calls();
+            int right = parseTerm();
+            if (folding) {
+                value = fold(ope, start, value, calls == rightCalls, rightStart, right, rightCalls == vmWriter.calls());
+            } else {
+                writeOperator(ope, start, value, rightStart, right);
+                value = NOT_CONSTANT;
+            }
         }
-        printNonTerminal("/expression");
+        listener.endNonTerminal(NonTerminal.EXPRESSION);
+        return value;
     }
 
-    void parseTerm() {
-        printNonTerminal("term");
+    int parseTerm() {
+        listener.startNonTerminal(NonTerminal.TERM);
+        int start = vmWriter.length();
+        int value = NOT_CONSTANT;
         if (peekTokenIs(NUMBER)) {
             expectPeek(NUMBER);
-            vmWriter.writePush(Segment.CONST, Integer.parseInt(currentToken.lexeme));
+            value = tokens.value(currentIndex);
+            if (value > Short.MAX_VALUE) {
+                semanticError("integer constant out of range (0..32767)");
+                value = Short.MAX_VALUE;
+            }
+            vmWriter.writePush(Segment.CONST, value);
         } else if (peekTokenIs(STRING)) {
             expectPeek(STRING);
-            var strValue = currentToken.lexeme;
-            vmWriter.writePush(Segment.CONST, strValue.length());
-            vmWriter.writeCall("String.new", 1);
-            for (int i = 0; i < strValue.length(); i++) {
-                vmWriter.writePush(Segment.CONST, strValue.charAt(i));
-                vmWriter.writeCall("String.appendChar", 2);
-            }        
-        } else if (peekTokenIs(TRUE, FALSE, NULL)) {
-            expectPeek(TRUE, FALSE, NULL);
+            var strValue = currentLexeme();
+            int pooled = pooling ? pooledString(strValue) : -1;
+            if (pooled >= 0)
+                writePooledString(pooled);
+            else
+                writeString(strValue);
+        } else if (peekTokenIn(KEYWORD_CONSTANTS)) {
+            expectPeek(KEYWORD_CONSTANTS);
             vmWriter.writePush(Segment.CONST, 0);
-            if (currentToken.type == TRUE){
+            value = 0;
+            if (currentType() == TRUE){
                 vmWriter.writeArithmetic(Command.NOT);
+                value = -1;
             }
         } else if (peekTokenIs(THIS)) {
             expectPeek(THIS);
             vmWriter.writePush(Segment.POINTER, 0);
 
-        } else if (peekTokenIs(MINUS, NOT)) {
-            expectPeek(MINUS, NOT);
-            var op = currentToken.type;
-            parseTerm();
-            if (op == MINUS)
+        } else if (peekTokenIn(UNARY_OPS)) {
+            expectPeek(UNARY_OPS);
+            var op = currentType();
+            int operand = parseTerm();
+            if (operand != NOT_CONSTANT)
+                value = (short) (op == MINUS ? -operand : ~operand);
+            if (folding && operand != NOT_CONSTANT) {
+                vmWriter.truncate(start);
+                writeConstant(value);
+            } else if (op == MINUS)
                 vmWriter.writeArithmetic(Command.NEG);
             else
                 vmWriter.writeArithmetic(Command.NOT);
         } else if (peekTokenIs(IDENT)) {
             expectPeek(IDENT);
-            Symbol sym = symTable.resolve(currentToken.lexeme);
-            if (peekTokenIs(LPAREN, DOT)) {
+            if (peekTokenIn(CALL_FOLLOW)) {
                 parseSubroutineCall();
-            } else if (peekTokenIs(LBRACKET)) { // array
-                expectPeek(LBRACKET);
-                parseExpression();
-                vmWriter.writePush(kind2Segment(sym.kind()), sym.index());
-                vmWriter.writeArithmetic(Command.ADD);
-
-
-                expectPeek(RBRACKET);
-                vmWriter.writePop(Segment.POINTER, 1); // pop address pointer into pointer 1
-                vmWriter.writePush(Segment.THAT, 0);   // push the value of the address pointer back onto stack
-
             } else {
-                vmWriter.writePush(kind2Segment(sym.kind()), sym.index());
+                Symbol sym = resolve(currentName()); // se null o erro ja foi registrado
+                if (peekTokenIs(LBRACKET)) { // array
+                    expectPeek(LBRACKET);
+                    parseExpression();
+                    if (sym != null)
+                        vmWriter.writePush(kind2Segment(sym.kind()), sym.index());
+                    vmWriter.writeArithmetic(Command.ADD);
+
+                    expectPeek(RBRACKET);
+                    vmWriter.writePop(Segment.POINTER, 1); // pop address pointer into pointer 1
+                    vmWriter.writePush(Segment.THAT, 0);   // push the value of the address pointer back onto stack
+
+                } else if (sym != null) {
+                    vmWriter.writePush(kind2Segment(sym.kind()), sym.index());
+                }
             }
         } else if (peekTokenIs(LPAREN)) {
             expectPeek(LPAREN);
-            parseExpression();
+            value = parseExpression();
             expectPeek(RPAREN);
         } else {
-            throw error(peekToken, "term expected");
+            throw error(peekIndex, "term expected");
         }
-        printNonTerminal("/term");
+        listener.endNonTerminal(NonTerminal.TERM);
+        return value;
     }
 
    void parseSubroutineCall() {     
@@ -464,27 +913,29 @@ public class Parser {
 
             var nArgs = 0;
     
-            var ident = currentToken.lexeme;
+            var ident = currentName();
             var symbol = symTable.resolve(ident); // classe ou objeto
-            var functionName = ident + ".";
+            var classOfCall = ident;
+            var functionName = ident;
     
             if (peekTokenIs(LPAREN)) { // método da propria classe
                 expectPeek(LPAREN);
                 vmWriter.writePush(Segment.POINTER, 0);
                 nArgs = parseExpressionList() + 1;
                 expectPeek(RPAREN);
-                functionName = className + "." + ident;
+                classOfCall = className;
             } else {
                 // pode ser um metodo de um outro objeto ou uma função
                 expectPeek(DOT);
                 expectPeek(IDENT); // nome da função
     
                 if (symbol != null) { // é um metodo
-                    functionName = symbol.type() + "." + currentToken.lexeme;
+                    classOfCall = symbol.type();
+                    functionName = currentName();
                     vmWriter.writePush(kind2Segment(symbol.kind()), symbol.index());
                     nArgs = 1; // do proprio objeto
                 } else {
-                    functionName += currentToken.lexeme; // é uma função
+                    functionName = currentName(); // é uma função
                 }
     
                 expectPeek(LPAREN);
@@ -493,15 +944,15 @@ public class Parser {
                 expectPeek(RPAREN);
             }
     
-            vmWriter.writeCall(functionName, nArgs);
+            vmWriter.writeCall(classOfCall, functionName, nArgs);
       }
 
     int parseExpressionList() {
-        printNonTerminal("expressionList");
+        listener.startNonTerminal(NonTerminal.EXPRESSION_LIST);
 
         var nArgs = 0;
 
-        if (!peekTokenIs(RPAREN)) // verifica se tem pelo menos uma expressao
+        if (!peekTokenIn(EXPRESSION_LIST_FOLLOW)) // verifica se tem pelo menos uma expressao
         {
             parseExpression();
             nArgs = 1;
@@ -514,44 +965,120 @@ public class Parser {
             nArgs++;
         }
 
-        printNonTerminal("/expressionList");
+        listener.endNonTerminal(NonTerminal.EXPRESSION_LIST);
         return nArgs;
     }
 
+    // a arvore de analise so e produzida se algum listener for registrado
+    public void setListener(ParseListener listener) {
+        this.listener = listener;
+    }
+
     public String XMLOutput() {
-        return xmlOutput.toString();
+        if (listener instanceof XmlParseListener xml)
+            return xml.output();
+        return "";
     }
 
-    private void printNonTerminal(String nterminal) {
-        xmlOutput.append(String.format("<%s>\r\n", nterminal));
+    boolean peekTokenIs(TokenType type) {
+        return tokens.type(peekIndex) == type;
     }
 
-    boolean peekTokenIs(TokenType... types) {
-        for (TokenType type : types) {
-            if (peekToken.type == type) {
-                return true;
-            }
-        }
-        return false;
+    boolean peekTokenIn(long set) {
+        return (set & 1L << tokens.type(peekIndex).ordinal()) != 0;
     }
 
     boolean currentTokenIs(TokenType type) {
-        return currentToken.type == type;
+        return currentType() == type;
+    }
+
+    void expectPeek(TokenType type) {
+        expectPeek(1L << type.ordinal());
+    }
+
+    void expectPeek(long set) {
+        if (!peekTokenIn(set))
+            throw error(peekIndex, "expected " + describe(set));
+        nextToken();
+        listener.terminal(tokens, currentIndex);
     }
 
-    private void expectPeek(TokenType... types) {
-        for (TokenType type : types) {
-            if (peekToken.type == type) {
-                nextToken();
-                xmlOutput.append(String.format("%s\r\n", currentToken.toString()));
+    // registra o diagnostico; quem chama lanca o ParseError para desviar ate a recuperacao
+    private ParseError error(int tokenIndex, String message) {
+        if (tokens.type(tokenIndex) == ILLEGAL)
+            message = tokens.length(tokenIndex) == 0 ? "unterminated comment" : "illegal character";
+        var diagnostic = new Diagnostic(tokens.line(tokenIndex), tokens.lexeme(tokenIndex), message);
+        if (tokenIndex != lastErrorToken) // um erro por token, sem cascata
+            errors.add(diagnostic);
+        lastErrorToken = tokenIndex;
+        return new ParseError(diagnostic);
+    }
+
+    // erro semantico no token atual: registra e segue a analise
+    private void semanticError(String message) {
+        errors.add(new Diagnostic(tokens.line(currentIndex), currentLexeme(), message));
+    }
+
+    private void define(int name, int type, Kind kind) {
+        if (!symTable.define(name, type, kind))
+            semanticError("variable already defined");
+    }
+
+    private Symbol resolve(int name) {
+        var symbol = symTable.resolve(name);
+        if (symbol == null)
+            semanticError("undefined variable");
+        return symbol;
+    }
+
+    // modo panico: descarta tokens ate um de stop (sem consumi-lo) ou ate logo
+    // depois de um ';'. Blocos { ... } no caminho sao descartados inteiros.
+    private void synchronize(long stop) {
+        while (!peekTokenIs(EOF) && !peekTokenIn(stop)) {
+            var type = tokens.type(peekIndex);
+            nextToken();
+            if (type == SEMICOLON)
                 return;
-            }
+            if (type == LBRACE)
+                skipBlock();
         }
-        throw error(peekToken, "Expected a statement");
     }
 
-    private ParseError error(Token token, String message) {
-        throw new ParseError();
+    private void skipBlock() {
+        for (int depth = 1; depth > 0 && !peekTokenIs(EOF);) {
+            var type = tokens.type(peekIndex);
+            nextToken();
+            if (type == LBRACE)
+                depth++;
+            else if (type == RBRACE)
+                depth--;
+        }
+    }
+
+    // descarta ate a proxima subrotina ou ate o '}' que fecha a classe
+    private void skipSubroutine() {
+        while (!peekTokenIs(EOF) && !peekTokenIn(SUBROUTINE_DEC_FIRST)) {
+            if (peekTokenIs(RBRACE) && peekIndex + 1 < tokens.size() && tokens.type(peekIndex + 1) == EOF)
+                return;
+            nextToken();
+        }
+    }
+
+    private static String describe(long set) {
+        var names = new ArrayList<String>();
+        for (TokenType type : TokenType.values()) {
+            if ((set & 1L << type.ordinal()) == 0)
+                continue;
+            if (type == IDENT)
+                names.add("identifier");
+            else if (type == NUMBER)
+                names.add("integer constant");
+            else if (type == STRING)
+                names.add("string constant");
+            else
+                names.add("'" + type.lexeme + "'");
+        }
+        return String.join(" or ", names);
     }
 
     public void compileOperators(TokenType type) {
@@ -565,6 +1092,173 @@ public class Parser {
         }
     }
 
+    private void writeString(String value) {
+        vmWriter.writePush(Segment.CONST, value.length());
+        vmWriter.writeCall("String.new", 1);
+        for (int i = 0; i < value.length(); i++) {
+            vmWriter.writePush(Segment.CONST, value.charAt(i));
+            vmWriter.writeCall("String.appendChar", 2);
+        }
+    }
+
+    // posicao do literal no pool da classe, ou -1 se o pool estiver cheio. Os
+    // estaticos declarados vem antes das subrotinas, entao ja estao contados.
+    private int pooledString(String value) {
+        Integer index = stringSlots.get(value);
+        if (index != null)
+            return index;
+        int limit = Math.min(MAX_POOLED_STRINGS, VMWriter.STATIC_SEGMENT_SIZE - symTable.varCount(Kind.STATIC));
+        if (pooledStrings.size() >= limit)
+            return -1;
+        stringSlots.put(value, pooledStrings.size());
+        pooledStrings.add(value);
+        return pooledStrings.size() - 1;
+    }
+
+    // o literal fica num estatico depois dos declarados; so a primeira execucao o monta
+    private void writePooledString(int index) {
+        int slot = symTable.varCount(Kind.STATIC) + index;
+        var ready = "STRING_READY" + stringLabelNum++;
+        vmWriter.writePush(Segment.STATIC, slot);
+        vmWriter.writeIf(ready);
+        vmWriter.writeCall(stringBuilderName(index), 0);
+        vmWriter.writePop(Segment.STATIC, slot);
+        vmWriter.writeLabel(ready);
+        vmWriter.writePush(Segment.STATIC, slot);
+    }
+
+    // uma funcao por literal distinto, no fim da classe ('$' nao existe em nomes Jack)
+    private void writeStringBuilders() {
+        for (int i = 0; i < pooledStrings.size(); i++) {
+            vmWriter.writeFunction(stringBuilderName(i), 0);
+            writeString(pooledStrings.get(i));
+            vmWriter.writeReturn();
+        }
+    }
+
+    private String stringBuilderName(int index) {
+        return names.name(className) + ".string$" + index;
+    }
+
+    // left (gerado a partir de start) op right (a partir de rightStart): calcula em
+    // tempo de compilacao o que for constante e tira operacoes neutras. Um operando
+    // so e descartado se for puro (sem call). Aritmetica em 16 bits, como no Hack.
+    private int fold(TokenType op, int start, int left, boolean leftPure, int rightStart, int right, boolean rightPure) {
+        if (left != NOT_CONSTANT && right != NOT_CONSTANT) {
+            int value = evaluate(op, left, right);
+            if (value != NOT_CONSTANT) {
+                vmWriter.truncate(start);
+                writeConstant(value);
+                return value;
+            }
+        }
+        if (right != NOT_CONSTANT) {
+            if (isIdentity(op, right, false)) { // x + 0, x - 0, x * 1, x / 1, x & -1, x | 0
+                vmWriter.truncate(rightStart);
+                return NOT_CONSTANT;
+            }
+            if (isAbsorbing(op, right) && leftPure) { // x * 0, x & 0, x | -1
+                vmWriter.truncate(start);
+                writeConstant(right);
+                return right;
+            }
+        }
+        if (left != NOT_CONSTANT) {
+            if (isIdentity(op, left, true)) {
+                vmWriter.delete(start, rightStart);
+                return NOT_CONSTANT;
+            }
+            if (op == MINUS && left == 0) { // 0 - x
+                vmWriter.delete(start, rightStart);
+                vmWriter.writeArithmetic(Command.NEG);
+                return NOT_CONSTANT;
+            }
+            if (isAbsorbing(op, left) && rightPure) {
+                vmWriter.truncate(start);
+                writeConstant(left);
+                return left;
+            }
+        }
+        writeOperator(op, start, left, rightStart, right);
+        return NOT_CONSTANT;
+    }
+
+    // os dois operandos ja estao na pilha; com STRENGTH_REDUCTION multiplicacao e
+    // divisao por constante podem virar somas em vez de chamar o SO
+    private void writeOperator(TokenType op, int start, int left, int rightStart, int right) {
+        if (reducing && (op == ASTERISK || op == SLASH)) {
+            List<Instruction> code = null;
+            if (right != NOT_CONSTANT) {
+                code = op == ASTERISK
+                        ? StrengthReduction.multiply(vmWriter.single(start, rightStart), right)
+                        : StrengthReduction.divide(right);
+                if (code != null)
+                    vmWriter.truncate(rightStart);
+            } else if (left != NOT_CONSTANT && op == ASTERISK) {
+                code = StrengthReduction.multiply(vmWriter.single(rightStart, vmWriter.length()), left);
+                if (code != null)
+                    vmWriter.delete(start, rightStart);
+            }
+            if (code != null) {
+                for (var instruction : code)
+                    vmWriter.write(instruction);
+                return;
+            }
+        }
+        compileOperators(op);
+    }
+
+    // NOT_CONSTANT quando o resultado depende da execucao (divisao por 0, -32768 / -1)
+    static int evaluate(TokenType op, int a, int b) {
+        return switch (op) {
+            case PLUS -> (short) (a + b);
+            case MINUS -> (short) (a - b);
+            case ASTERISK -> (short) (a * b);
+            case SLASH -> b == 0 || a == Short.MIN_VALUE ? NOT_CONSTANT : (short) (a / b);
+            case AND -> a & b;
+            case OR -> a | b;
+            case LT -> a < b ? -1 : 0;
+            case GT -> a > b ? -1 : 0;
+            case EQ -> a == b ? -1 : 0;
+            default -> NOT_CONSTANT;
+        };
+    }
+
+    private static boolean isIdentity(TokenType op, int constant, boolean onLeft) {
+        return switch (op) {
+            case PLUS, OR -> constant == 0;
+            case MINUS -> constant == 0 && !onLeft;
+            case ASTERISK -> constant == 1;
+            case SLASH -> constant == 1 && !onLeft;
+            case AND -> constant == -1;
+            default -> false;
+        };
+    }
+
+    private static boolean isAbsorbing(TokenType op, int constant) {
+        return switch (op) {
+            case ASTERISK, AND -> constant == 0;
+            case OR -> constant == -1;
+            default -> false;
+        };
+    }
+
+    // constante de 16 bits com sinal; push constant so aceita 0..32767
+    private void writeConstant(int value) {
+        if (value >= 0) {
+            vmWriter.writePush(Segment.CONST, value);
+        } else if (value == -1) {
+            vmWriter.writePush(Segment.CONST, 0);
+            vmWriter.writeArithmetic(Command.NOT);
+        } else if (value == Short.MIN_VALUE) {
+            vmWriter.writePush(Segment.CONST, Short.MAX_VALUE);
+            vmWriter.writeArithmetic(Command.NOT);
+        } else {
+            vmWriter.writePush(Segment.CONST, -value);
+            vmWriter.writeArithmetic(Command.NEG);
+        }
+    }
+
     private Command typeOperator(TokenType type) {
         if (type == PLUS)
             return Command.ADD;
@@ -587,16 +1281,16 @@ public class Parser {
         return vmWriter.vmOutput();
     }
 
-    void parseSubroutineBody(String functionName, TokenType subroutineType) {
+    void parseSubroutineBody(int functionName, TokenType subroutineType) {
 
-        printNonTerminal("subroutineBody");
+        listener.startNonTerminal(NonTerminal.SUBROUTINE_BODY);
         expectPeek(LBRACE);
         while (peekTokenIs(VAR)) {
             parseVarDec();
         }
         var nlocals = symTable.varCount(Kind.VAR);
 
-        vmWriter.writeFunction(functionName, nlocals);
+        vmWriter.writeFunction(className, functionName, nlocals);
 
         if (subroutineType == CONSTRUCTOR) {
             vmWriter.writePush(Segment.CONST, symTable.varCount(Kind.FIELD));
@@ -611,7 +1305,7 @@ public class Parser {
 
         parseStatements();
         expectPeek(RBRACE);
-        printNonTerminal("/subroutineBody");
+        listener.endNonTerminal(NonTerminal.SUBROUTINE_BODY);
     }
     
 
@@ -626,4 +1320,20 @@ public class Parser {
             return Segment.ARG;
         return null;
     }
+
+    static long set(TokenType... types) {
+        long set = 0;
+        for (TokenType type : types)
+            set |= 1L << type.ordinal();
+        return set;
+    }
+
+    private static int[] keywordNames() {
+        var types = TokenType.values();
+        int[] ids = new int[types.length];
+        for (TokenType type : types)
+            if (TokenType.isKeyword(type))
+                ids[type.ordinal()] = PREDEFINED_NAMES.intern(type.lexeme);
+        return ids;
+    }
 }
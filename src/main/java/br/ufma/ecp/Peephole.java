@@ -0,0 +1,167 @@
+package br.ufma.ecp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+// Otimizador peephole: uma tabela de regras troca sequencias curtas de
+// instrucoes por outras equivalentes e menores. "$x" em um padrao casa com
+// qualquer palavra (o mesmo valor em todas as ocorrencias) e pode ser usado
+// na troca. Depois das regras, codigo inalcancavel apos goto/return e rotulos
+// sem uso sao removidos; tudo se repete ate nada mais mudar.
+public class Peephole implements VMPass {
+
+    public record Rule(String name, List<String> pattern, List<String> replacement) {
+    }
+
+    public static final List<Rule> RULES = standardRules();
+
+    private final List<Rule> rules;
+    private final List<String[]> patterns = new ArrayList<>(); // palavras de cada linha dos padroes, em ordem
+    private final int longest;
+
+    public Peephole() {
+        this(RULES);
+    }
+
+    public Peephole(List<Rule> rules) {
+        this.rules = List.copyOf(rules);
+        int longest = 1;
+        for (var rule : rules) {
+            longest = Math.max(longest, rule.pattern().size());
+            for (var line : rule.pattern())
+                patterns.add(line.split(" "));
+        }
+        this.longest = longest;
+    }
+
+    private static List<Rule> standardRules() {
+        var rules = new ArrayList<Rule>();
+        // if de parseIf apos comparacao (resultado 0 ou -1): salta direto para o else
+        for (var cmp : new String[] { "eq", "gt", "lt" })
+            rules.add(new Rule("if-over-goto-" + cmp,
+                    List.of(cmp, "if-goto $t", "goto $f", "label $t"),
+                    List.of(cmp, "not", "if-goto $f", "label $t")));
+        rules.add(new Rule("double-not", List.of("not", "not"), List.of()));
+        rules.add(new Rule("double-neg", List.of("neg", "neg"), List.of()));
+        // true: push constant 0; not
+        rules.add(new Rule("jump-if-true", List.of("push constant 0", "not", "if-goto $l"), List.of("goto $l")));
+        rules.add(new Rule("jump-if-false", List.of("push constant 0", "if-goto $l"), List.of()));
+        rules.add(new Rule("goto-next", List.of("goto $l", "label $l"), List.of("label $l")));
+        rules.add(new Rule("push-pop-same", List.of("push $s $i", "pop $s $i"), List.of()));
+        rules.add(new Rule("add-zero", List.of("push constant 0", "add"), List.of()));
+        rules.add(new Rule("sub-zero", List.of("push constant 0", "sub"), List.of()));
+        // a[i] = valor simples: sem passar o valor por temp 0 (nao pode ler pointer 1/that)
+        for (var segment : new String[] { "constant", "local", "argument", "static", "this" })
+            rules.add(new Rule("array-store-" + segment,
+                    List.of("push " + segment + " $v", "pop temp 0", "pop pointer 1", "push temp 0", "pop that 0"),
+                    List.of("pop pointer 1", "push " + segment + " $v", "pop that 0")));
+        return List.copyOf(rules);
+    }
+
+    @Override
+    public void run(List<Instruction> code) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int i = 0;
+            while (i < code.size()) {
+                if (rewrite(code, i)) {
+                    changed = true;
+                    i = Math.max(0, i - longest + 1);
+                } else {
+                    i++;
+                }
+            }
+            changed |= removeUnreachable(code);
+            changed |= removeUnusedLabels(code);
+        }
+    }
+
+    // tenta cada regra na posicao at; true se alguma trocou o codigo
+    private boolean rewrite(List<Instruction> code, int at) {
+        int p = 0;
+        for (var rule : rules) {
+            int size = rule.pattern().size();
+            Map<String, String> bindings = match(code, at, patterns.subList(p, p + size));
+            p += size;
+            if (bindings == null)
+                continue;
+            var replacement = new ArrayList<Instruction>();
+            for (var line : rule.replacement())
+                replacement.add(Instruction.parse(substitute(line, bindings)));
+            var window = code.subList(at, at + size);
+            window.clear();
+            window.addAll(replacement);
+            return true;
+        }
+        return false;
+    }
+
+    private static Map<String, String> match(List<Instruction> code, int at, List<String[]> pattern) {
+        if (at + pattern.size() > code.size())
+            return null;
+        Map<String, String> bindings = new HashMap<>();
+        for (int k = 0; k < pattern.size(); k++) {
+            String[] words = pattern.get(k);
+            var instruction = code.get(at + k);
+            if (!instruction.is(words[0]) || words.length != wordCount(instruction))
+                return null;
+            if (words.length > 1 && !bind(words[1], instruction.arg(), bindings))
+                return null;
+            if (words.length > 2 && !bind(words[2], Integer.toString(instruction.index()), bindings))
+                return null;
+        }
+        return bindings;
+    }
+
+    private static int wordCount(Instruction instruction) {
+        if (instruction.arg() == null)
+            return 1;
+        return instruction.index() < 0 ? 2 : 3;
+    }
+
+    private static boolean bind(String word, String value, Map<String, String> bindings) {
+        if (!word.startsWith("$"))
+            return word.equals(value);
+        String bound = bindings.putIfAbsent(word, value);
+        return bound == null || bound.equals(value);
+    }
+
+    private static String substitute(String line, Map<String, String> bindings) {
+        var result = new StringBuilder();
+        for (var word : line.split(" ")) {
+            if (result.length() > 0)
+                result.append(' ');
+            result.append(word.startsWith("$") ? bindings.get(word) : word);
+        }
+        return result.toString();
+    }
+
+    // depois de goto ou return nada executa ate o proximo rotulo
+    private static boolean removeUnreachable(List<Instruction> code) {
+        boolean changed = false;
+        for (int i = 0; i < code.size(); i++) {
+            if (!code.get(i).is("goto") && !code.get(i).is("return"))
+                continue;
+            int end = i + 1;
+            while (end < code.size() && !code.get(end).is("label") && !code.get(end).is("function"))
+                end++;
+            if (end > i + 1) {
+                code.subList(i + 1, end).clear();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean removeUnusedLabels(List<Instruction> code) {
+        var used = new HashSet<String>();
+        for (var instruction : code)
+            if (instruction.isJump())
+                used.add(instruction.arg());
+        return code.removeIf(instruction -> instruction.is("label") && !used.contains(instruction.arg()));
+    }
+}
@@ -0,0 +1,312 @@
+package br.ufma.ecp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import br.ufma.ecp.ControlFlowGraph.Block;
+import br.ufma.ecp.ControlFlowGraph.Exit;
+
+// Tira leituras e escritas redundantes de local e argument com duas analises
+// de fluxo de dados sobre o grafo da subrotina: variaveis vivas (para tras) e
+// constantes disponiveis em cada variavel (para frente; "function f n" zera os
+// locais). Dentro do bloco a pilha da VM e simulada para saber o valor de cada
+// pop. Trocas feitas:
+//   push c; pop x   com x == c ja            -> nada
+//   push v; pop x   com x morta depois       -> nada
+//   pop x; push x   com x morta depois       -> nada (o valor fica na pilha)
+//   pop x           morta, valor calculado   -> pop temp 0 (mais barato no Hack)
+//   push x          com x == c (0..32767)     -> push constant c
+// Campos (this k) so dentro do bloco: lidos varias vezes sem pop this k, pop
+// that, pop pointer 0 ou call no meio, ficam num temp quando o HackCost diz
+// que compensa (a partir de 4 leituras).
+// Supoe que arrays (that) nao apontam para a pilha, como todo programa Jack.
+public class RedundantLoadStore implements VMPass {
+
+    private static final Instruction DISCARD = new Instruction("pop", "temp", 0);
+
+    // uma troca pode deixar outra variavel morta: repete ate nada mudar
+    @Override
+    public void run(List<Instruction> code) {
+        List<Instruction> before;
+        do {
+            before = List.copyOf(code);
+            runOnce(code);
+        } while (!code.equals(before));
+    }
+
+    private void runOnce(List<Instruction> code) {
+        var cfg = ControlFlowGraph.build(code);
+        var blocks = cfg.blocks();
+        var liveOut = liveness(blocks);
+        var liveAfter = new HashMap<Block, List<Set<String>>>();
+        var drops = new HashMap<Block, boolean[]>();
+        for (var block : blocks) {
+            var live = liveAfter(block, liveOut.get(block));
+            liveAfter.put(block, live);
+            drops.put(block, dropped(block.body(), live));
+        }
+        var constantsIn = constants(cfg, drops);
+        for (var block : blocks)
+            if (constantsIn.containsKey(block)) { // bloco inalcancavel fica como esta
+                rewrite(block, liveAfter.get(block), drops.get(block), constantsIn.get(block));
+                reuseFields(block.body());
+            }
+        code.clear();
+        code.addAll(cfg.linearize());
+    }
+
+    private static boolean isVariable(Instruction instruction) {
+        return instruction.arg() != null && (instruction.arg().equals("local") || instruction.arg().equals("argument"));
+    }
+
+    private static String slot(Instruction instruction) {
+        return instruction.arg() + " " + instruction.index();
+    }
+
+    // --- vivas: quem ainda pode ser lida antes de ser escrita de novo
+
+    private static Map<Block, Set<String>> liveness(List<Block> blocks) {
+        var liveIn = new HashMap<Block, Set<String>>();
+        var liveOut = new HashMap<Block, Set<String>>();
+        for (var block : blocks) {
+            liveIn.put(block, new HashSet<>());
+            liveOut.put(block, new HashSet<>());
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = blocks.size() - 1; b >= 0; b--) {
+                var block = blocks.get(b);
+                var out = new HashSet<String>();
+                if (block.exit() != Exit.RETURN)
+                    for (var successor : block.successors())
+                        out.addAll(liveIn.get(successor));
+                var in = new HashSet<>(out);
+                var body = block.body();
+                for (int i = body.size() - 1; i >= 0; i--)
+                    transferLive(body.get(i), in);
+                liveOut.put(block, out);
+                if (!in.equals(liveIn.get(block))) {
+                    liveIn.put(block, in);
+                    changed = true;
+                }
+            }
+        }
+        return liveOut;
+    }
+
+    // vivas depois de cada instrucao do bloco
+    private static List<Set<String>> liveAfter(Block block, Set<String> liveOut) {
+        var body = block.body();
+        var result = new ArrayList<Set<String>>(body.size());
+        var live = new HashSet<>(liveOut);
+        for (int i = body.size() - 1; i >= 0; i--) {
+            result.add(0, new HashSet<>(live));
+            transferLive(body.get(i), live);
+        }
+        return result;
+    }
+
+    // pops de variavel que saem: escrita morta ou "pop x; push x" com x morta depois.
+    // Sem o pop a variavel guarda outro valor, entao as constantes a tratam como desconhecida.
+    private static boolean[] dropped(List<Instruction> body, List<Set<String>> liveAfter) {
+        var dropped = new boolean[body.size()];
+        for (int i = 0; i < body.size(); i++) {
+            var instruction = body.get(i);
+            if (!instruction.is("pop") || !isVariable(instruction))
+                continue;
+            var key = slot(instruction);
+            dropped[i] = !liveAfter.get(i).contains(key) || isReload(body, i, liveAfter);
+        }
+        return dropped;
+    }
+
+    private static boolean isReload(List<Instruction> body, int pop, List<Set<String>> liveAfter) {
+        var key = slot(body.get(pop));
+        return pop + 1 < body.size() && body.get(pop + 1).is("push") && isVariable(body.get(pop + 1))
+                && slot(body.get(pop + 1)).equals(key) && !liveAfter.get(pop + 1).contains(key);
+    }
+
+    private static void transferLive(Instruction instruction, Set<String> live) {
+        if (!isVariable(instruction))
+            return;
+        if (instruction.is("pop"))
+            live.remove(slot(instruction));
+        else
+            live.add(slot(instruction));
+    }
+
+    // --- constantes disponiveis: o valor de cada variavel em todos os caminhos
+
+    private static Map<Block, Map<String, Integer>> constants(ControlFlowGraph cfg, Map<Block, boolean[]> drops) {
+        var in = new HashMap<Block, Map<String, Integer>>(); // ausente = ainda nao alcancado
+        var entry = new HashMap<String, Integer>();
+        var first = cfg.entry().body();
+        if (!first.isEmpty() && first.get(0).is("function"))
+            for (int i = 0; i < first.get(0).index(); i++)
+                entry.put("local " + i, 0);
+        in.put(cfg.entry(), entry);
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (var block : cfg.blocks()) {
+                if (!in.containsKey(block))
+                    continue;
+                var out = new HashMap<>(in.get(block));
+                var stack = new ArrayList<Integer>();
+                var body = block.body();
+                for (int i = 0; i < body.size(); i++)
+                    simulate(body.get(i), out, stack, drops.get(block)[i]);
+                for (var successor : block.successors()) {
+                    var previous = in.get(successor);
+                    var merged = previous == null ? out : meet(previous, out);
+                    if (!merged.equals(previous)) {
+                        in.put(successor, merged);
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return in;
+    }
+
+    private static Map<String, Integer> meet(Map<String, Integer> a, Map<String, Integer> b) {
+        var result = new HashMap<String, Integer>();
+        for (var entry : a.entrySet())
+            if (entry.getValue().equals(b.get(entry.getKey())))
+                result.put(entry.getKey(), entry.getValue());
+        return result;
+    }
+
+    // pilha abstrata: constante conhecida ou null; abaixo do inicio do bloco tudo e null
+    private static void simulate(Instruction instruction, Map<String, Integer> values, List<Integer> stack,
+            boolean dropped) {
+        switch (instruction.op()) {
+            case "push" -> {
+                if (instruction.is("push", "constant"))
+                    stack.add(instruction.index());
+                else
+                    stack.add(isVariable(instruction) ? values.get(slot(instruction)) : null);
+            }
+            case "pop" -> {
+                var value = pop(stack);
+                if (isVariable(instruction)) {
+                    if (value == null || dropped)
+                        values.remove(slot(instruction));
+                    else
+                        values.put(slot(instruction), value);
+                }
+            }
+            case "neg", "not" -> {
+                pop(stack);
+                stack.add(null);
+            }
+            case "call" -> {
+                for (int i = 0; i < instruction.index(); i++)
+                    pop(stack);
+                stack.add(null);
+            }
+            case "function" -> {
+            }
+            default -> { // add, sub, eq, gt, lt, and, or
+                pop(stack);
+                pop(stack);
+                stack.add(null);
+            }
+        }
+    }
+
+    private static Integer pop(List<Integer> stack) {
+        return stack.isEmpty() ? null : stack.remove(stack.size() - 1);
+    }
+
+    // --- reescrita de um bloco com as duas analises
+
+    private static void rewrite(Block block, List<Set<String>> liveAfter, boolean[] dropped,
+            Map<String, Integer> constantsIn) {
+        var body = block.body();
+        var values = new HashMap<>(constantsIn);
+        var stack = new ArrayList<Integer>();
+        var result = new ArrayList<Instruction>(body.size());
+        for (int i = 0; i < body.size(); i++) {
+            var instruction = body.get(i);
+            if (instruction.is("pop") && isVariable(instruction)) {
+                var key = slot(instruction);
+                var top = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+                if (dropped[i] && isReload(body, i, liveAfter)) {
+                    values.remove(key); // o valor so continua na pilha
+                    i++;
+                    continue;
+                }
+                if (dropped[i] || top != null && top.equals(values.get(key))) {
+                    pop(stack);
+                    if (dropped[i])
+                        values.remove(key);
+                    var last = result.isEmpty() ? null : result.get(result.size() - 1);
+                    if (last != null && last.is("push"))
+                        result.remove(result.size() - 1);
+                    else
+                        result.add(DISCARD);
+                    continue;
+                }
+            } else if (instruction.is("push") && isVariable(instruction)) {
+                var value = values.get(slot(instruction));
+                if (value != null && value >= 0)
+                    instruction = new Instruction("push", "constant", value);
+            }
+            simulate(instruction, values, stack, false);
+            result.add(instruction);
+        }
+        body.clear();
+        body.addAll(result);
+    }
+
+    // --- leituras repetidas de um campo no bloco
+
+    // n leituras de "push this k" custam n * PUSH; com um temp, a primeira mais
+    // "pop temp t; push temp t" e as outras "push temp t". Os temps vem da mesma
+    // faixa do ArrayAddressCSE, que nao usa os que o bloco ja usa.
+    private static void reuseFields(List<Instruction> body) {
+        var used = new HashSet<Integer>();
+        for (var instruction : body)
+            if ("temp".equals(instruction.arg()))
+                used.add(instruction.index());
+        var reads = new ArrayList<Integer>();
+        for (int i = 0; i < body.size(); i++) {
+            var field = body.get(i);
+            if (!field.is("push", "this"))
+                continue;
+            reads.clear();
+            reads.add(i);
+            for (int j = i + 1; j < body.size() && !changesField(body.get(j), field.index()); j++)
+                if (body.get(j).equals(field))
+                    reads.add(j);
+            int n = reads.size();
+            if (n * HackCost.PUSH <= HackCost.PUSH + HackCost.POP_DIRECT + n * HackCost.PUSH_DIRECT)
+                continue;
+            int t = ArrayAddressCSE.FIRST_TEMP;
+            while (t <= ArrayAddressCSE.LAST_TEMP && used.contains(t))
+                t++;
+            if (t > ArrayAddressCSE.LAST_TEMP)
+                return;
+            used.add(t);
+            var saved = new Instruction("push", "temp", t);
+            for (int k = 1; k < n; k++)
+                body.set(reads.get(k), saved);
+            body.add(i + 1, new Instruction("pop", "temp", t));
+            body.add(i + 2, saved);
+            i += 2;
+        }
+    }
+
+    // depois da instrucao this k pode valer outra coisa (that pode ser o proprio objeto)
+    private static boolean changesField(Instruction instruction, int k) {
+        return instruction.is("call") || instruction.is("pop", "pointer", 0) || instruction.is("pop", "that")
+                || instruction.is("pop", "this", k);
+    }
+}
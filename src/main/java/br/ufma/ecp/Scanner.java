@@ -1,58 +1,121 @@
 package br.ufma.ecp;
 
 import static br.ufma.ecp.token.TokenType.EOF;
-import static br.ufma.ecp.token.TokenType.IDENT;
 import static br.ufma.ecp.token.TokenType.ILLEGAL;
 import static br.ufma.ecp.token.TokenType.NUMBER;
 
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
 
+import br.ufma.ecp.token.Keywords;
+import br.ufma.ecp.token.Names;
 import br.ufma.ecp.token.Token;
+import br.ufma.ecp.token.TokenBuffer;
 import br.ufma.ecp.token.TokenType;
 
 public class Scanner {
 
-    private byte[] input;
+    private static final long LOW_BITS = 0x7F7F7F7F7F7F7F7FL;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final long SPACES = 0x2020202020202020L;
+    private static final long TABS = 0x0909090909090909L;
+    private static final long CRS = 0x0D0D0D0D0D0D0D0DL;
+    private static final long NEWLINES = 0x0A0A0A0A0A0A0A0AL;
+    private static final long STARS = 0x2A2A2A2A2A2A2A2AL;
+
+    private ByteBuffer input;
+    private ByteBuffer words; // mesma memoria de input, lida em palavras de 8 bytes
+    private int end;
     private int current;
     private int start;
     private int line = 1;
 
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("method", TokenType.METHOD);
-        keywords.put("while", TokenType.WHILE);
-        keywords.put("if", TokenType.IF);
-        keywords.put("class", TokenType.CLASS);
-        keywords.put("constructor", TokenType.CONSTRUCTOR);
-        keywords.put("function", TokenType.FUNCTION);
-        keywords.put("field", TokenType.FIELD);
-        keywords.put("static", TokenType.STATIC);
-        keywords.put("var", TokenType.VAR);
-        keywords.put("int", TokenType.INT);
-        keywords.put("char", TokenType.CHAR);
-        keywords.put("boolean", TokenType.BOOLEAN);
-        keywords.put("void", TokenType.VOID);
-        keywords.put("true", TokenType.TRUE);
-        keywords.put("false", TokenType.FALSE);
-        keywords.put("null", TokenType.NULL);
-        keywords.put("this", TokenType.THIS);
-        keywords.put("let", TokenType.LET);
-        keywords.put("do", TokenType.DO);
-        keywords.put("else", TokenType.ELSE);
-        keywords.put("return", TokenType.RETURN);
-    }
+    private final Names names;
+
+    // intervalo do lexema do ultimo token varrido e valor de NUMBER (ou id do IDENT)
+    private int tokenStart;
+    private int tokenEnd;
+    private int value;
+
+    // modo streaming: janela de tamanho fixo reabastecida a partir do canal
+    private ReadableByteChannel channel;
+    private boolean channelEof;
+    private boolean inToken; // bytes a partir de start ainda sao necessarios
 
     public Scanner(byte[] input) {
+        this(ByteBuffer.wrap(input));
+    }
+
+    // le direto do buffer (inclusive MappedByteBuffer), de position() ate limit(), sem copiar
+    public Scanner(ByteBuffer input) {
+        this(input, new Names());
+    }
+
+    // ids dos identificadores vem de names, compartilhada com outros Scanners da mesma compilacao
+    public Scanner(ByteBuffer input, Names names) {
+        this.names = names;
+        reset(input);
+    }
+
+    // recomeca do zero em outra entrada (de position() ate limit()), sem canal
+    public void reset(ByteBuffer input) {
         this.input = input;
-        current = 0;
-        start = 0;
+        this.words = input.duplicate().clear().order(ByteOrder.LITTLE_ENDIAN);
+        current = input.position();
+        start = current;
+        end = input.limit();
+        line = 1;
+        tokenStart = tokenEnd = value = 0;
+        channel = null;
+        channelEof = false;
+        inToken = false;
+    }
+
+    // recomeca a varredura em input.position(), que deve estar fora de strings e comentarios
+    Scanner(ByteBuffer input, int line, Names names) {
+        this(input, names);
+        this.line = line;
+    }
+
+    // le do canal por uma janela de bufferSize bytes; so cresce se um unico token nao couber nela.
+    // O canal tem que ser bloqueante: cada leitura espera ao menos um byte (ou o fim).
+    public Scanner(ReadableByteChannel channel, int bufferSize) {
+        this(ByteBuffer.allocate(bufferSize).limit(0));
+        if (channel instanceof SelectableChannel selectable && !selectable.isBlocking())
+            throw new IllegalArgumentException("non-blocking channel");
+        this.channel = channel;
+        input.clear();
+    }
+
+    public int line() {
+        return line;
+    }
+
+    public Names names() {
+        return names;
     }
 
     private void skipWhitespace() {
+        // 8 bytes por vez enquanto houver palavra inteira no buffer
+        while (current + 8 <= end) {
+            long word = words.getLong(current);
+            long newlines = matchBytes(word, NEWLINES);
+            long blanks = matchBytes(word, SPACES) | matchBytes(word, TABS) | matchBytes(word, CRS) | newlines;
+            if (blanks == HIGH_BITS) {
+                line += Long.bitCount(newlines);
+                current += 8;
+            } else {
+                int skip = Long.numberOfTrailingZeros(~blanks & HIGH_BITS) >>> 3;
+                line += Long.bitCount(newlines & lowBytes(skip));
+                current += skip;
+                return;
+            }
+        }
+
         char ch = peek();
         while (ch == ' ' || ch == '\r' || ch == '\t' || ch == '\n') {
 
@@ -65,10 +128,47 @@ public class Scanner {
     }
 
     public Token nextToken() {
+        TokenType type = scan();
+        String lexeme = type.lexeme;
+        if (type == TokenType.IDENT)
+            lexeme = names.name(value);
+        else if (lexeme == null)
+            lexeme = TokenBuffer.decode(input, tokenStart, tokenEnd - tokenStart);
+        return new Token(type, lexeme, line);
+    }
+
+    // modo empacotado: varre a entrada inteira sem criar um Token por lexema
+    public TokenBuffer tokenize() {
+        TokenBuffer tokens = new TokenBuffer(input);
+        fill(tokens, Integer.MAX_VALUE);
+        return tokens;
+    }
+
+    // acrescenta ate max tokens (para depois do EOF). No modo streaming os bytes
+    // saem da janela, entao o texto dos lexemas variaveis e guardado no buffer.
+    public int fill(TokenBuffer tokens, int max) {
+        tokens.names(names);
+        int count = 0;
+        TokenType type;
+        do {
+            type = scan();
+            if (channel != null && type.lexeme == null && type != TokenType.IDENT)
+                tokens.add(type, TokenBuffer.decode(input, tokenStart, tokenEnd - tokenStart), line, value);
+            else
+                tokens.add(type, tokenStart, tokenEnd - tokenStart, line, value);
+            count++;
+        } while (type != EOF && count < max);
+        return count;
+    }
+
+    private TokenType scan() {
 
+        inToken = false;
         skipWhitespace();
 
         start = current;
+        inToken = true;
+        value = 0;
         char ch = peek();
 
         if (Character.isDigit(ch)) {
@@ -85,152 +185,180 @@ public class Scanner {
 
             case '/':
                 if (peekNext() == '/') {
+                    inToken = false;
                     skipLineComments();
-                    return nextToken();
+                    return scan();
                 } else if (peekNext() == '*') {
-                    skipBlockComments();
-                    return nextToken();
+                    inToken = false;
+                    if (!skipBlockComments()) {
+                        // comentario sem fim: ILLEGAL vazio no fim da entrada, depois EOF
+                        tokenStart = tokenEnd = current;
+                        return ILLEGAL;
+                    }
+                    return scan();
                 } else {
-                    advance();
-                    return new Token(TokenType.SLASH, "/", line);
+                    return symbol(TokenType.SLASH);
                 }
 
             case '+':
-                advance();
-                return new Token(TokenType.PLUS, "+", line);
+                return symbol(TokenType.PLUS);
             case '-':
-                advance();
-                return new Token(TokenType.MINUS, "-", line);
+                return symbol(TokenType.MINUS);
             case '*':
-                advance();
-                return new Token(TokenType.ASTERISK, "*", line);
+                return symbol(TokenType.ASTERISK);
             case '.':
-                advance();
-                return new Token(TokenType.DOT, ".", line);
+                return symbol(TokenType.DOT);
             case '&':
-                advance();
-                return new Token(TokenType.AND, "&", line);
+                return symbol(TokenType.AND);
             case '|':
-                advance();
-                return new Token(TokenType.OR, "|", line);
+                return symbol(TokenType.OR);
             case '~':
-                advance();
-                return new Token(TokenType.NOT, "~", line);
+                return symbol(TokenType.NOT);
 
             case '>':
-                advance();
-                return new Token(TokenType.GT, ">", line);
+                return symbol(TokenType.GT);
             case '<':
-                advance();
-                return new Token(TokenType.LT, "<", line);
+                return symbol(TokenType.LT);
             case '=':
-                advance();
-                return new Token(TokenType.EQ, "=", line);
+                return symbol(TokenType.EQ);
 
             case '(':
-                advance();
-                return new Token(TokenType.LPAREN, "(", line);
+                return symbol(TokenType.LPAREN);
             case ')':
-                advance();
-                return new Token(TokenType.RPAREN, ")", line);
+                return symbol(TokenType.RPAREN);
             case '{':
-                advance();
-                return new Token(TokenType.LBRACE, "{", line);
+                return symbol(TokenType.LBRACE);
             case '}':
-                advance();
-                return new Token(TokenType.RBRACE, "}", line);
+                return symbol(TokenType.RBRACE);
             case '[':
-                advance();
-                return new Token(TokenType.LBRACKET, "[", line);
+                return symbol(TokenType.LBRACKET);
             case ']':
-                advance();
-                return new Token(TokenType.RBRACKET, "]", line);
+                return symbol(TokenType.RBRACKET);
             case ';':
-                advance();
-                return new Token(TokenType.SEMICOLON, ";", line);
+                return symbol(TokenType.SEMICOLON);
             case ',':
-                advance();
-                return new Token(TokenType.COMMA, ",", line);
+                return symbol(TokenType.COMMA);
             case 0:
-                return new Token(EOF, "EOF", line);
+                tokenStart = tokenEnd = current;
+                return EOF;
             default:
-                advance();
-                return new Token(ILLEGAL, Character.toString(ch), line);
+                return symbol(ILLEGAL);
         }
     }
 
+    private TokenType symbol(TokenType type) {
+        advance();
+        tokenStart = start;
+        tokenEnd = current;
+        return type;
+    }
+
     private void skipLineComments() {
+        // para no '\n', que fica para o skipWhitespace contar
+        while (current + 8 <= end) {
+            long found = matchBytes(words.getLong(current), NEWLINES);
+            if (found != 0) {
+                current += Long.numberOfTrailingZeros(found) >>> 3;
+                return;
+            }
+            current += 8;
+        }
 
         for (char ch = peek(); ch != '\n' && ch != 0; advance(), ch = peek())
-            if (ch == '\n')
-                line++;
+            ;
     }
 
-    private void skipBlockComments() {
-        boolean endComment = false;
-        advance();
-        while (!endComment) {
-            advance();
+    // false se a entrada acaba antes do "*/"
+    private boolean skipBlockComments() {
+        current += 2; // "/*"
+        while (true) {
+            // procura o proximo '*' contando as quebras de linha puladas
+            while (current + 8 <= end) {
+                long word = words.getLong(current);
+                long stars = matchBytes(word, STARS);
+                long newlines = matchBytes(word, NEWLINES);
+                if (stars != 0) {
+                    int skip = Long.numberOfTrailingZeros(stars) >>> 3;
+                    line += Long.bitCount(newlines & lowBytes(skip));
+                    current += skip;
+                    break;
+                }
+                line += Long.bitCount(newlines);
+                current += 8;
+            }
+
             char ch = peek();
+            while (ch != '*' && ch != 0) {
+                if (ch == '\n')
+                    line++;
+                advance();
+                ch = peek();
+            }
 
-            if (ch == '\n')
-                line++;
+            if (ch == 0) // eof, lexical error
+                return false;
 
-            if (ch == 0) { // eof, lexical error
-                System.exit(1);
+            advance();
+            if (peek() == '/') {
+                advance();
+                return true;
             }
+        }
+    }
 
-            if (ch == '*') {
-                for (ch = peek(); ch == '*'; advance(), ch = peek())
-                    ;
-                if (ch == '/') {
-                    endComment = true;
-                    advance();
-                }
-            }
+    // 0x80 em cada byte de word igual ao byte repetido em pattern, 0 nos demais (sem falsos positivos)
+    static long matchBytes(long word, long pattern) {
+        long x = word ^ pattern;
+        return ~(((x & LOW_BITS) + LOW_BITS) | x | LOW_BITS);
+    }
 
-        }
+    // mascara dos n primeiros bytes (little endian) de uma palavra
+    private static long lowBytes(int n) {
+        return (1L << (n * 8)) - 1;
     }
 
     private char peekNext() {
-        int next = current + 1;
-        if (next < input.length) {
-            return (char) input[next];
+        if (available(1)) {
+            return (char) input.get(current + 1);
         } else {
             return 0;
         }
     }
 
-    private Token identifier() {
+    private TokenType identifier() {
         while (isAlphaNumeric(peek()))
             advance();
 
-        String id = new String(input, start, current - start, StandardCharsets.UTF_8);
-        TokenType type = keywords.get(id);
-        if (type == null)
-            type = IDENT;
-        return new Token(type, id, line);
+        tokenStart = start;
+        tokenEnd = current;
+        TokenType type = Keywords.lookup(input, start, current - start);
+        if (type == TokenType.IDENT)
+            value = names.intern(input, start, current - start);
+        return type;
     }
 
-    private Token number() {
-        while (Character.isDigit(peek())) {
+    // valor para em 32768 (um acima do maior inteiro Jack): o Parser reporta, sem estourar o int
+    private TokenType number() {
+        for (char ch = peek(); Character.isDigit(ch); ch = peek()) {
+            value = Math.min(value * 10 + (ch - '0'), Short.MAX_VALUE + 1);
             advance();
         }
 
-        String num = new String(input, start, current - start, StandardCharsets.UTF_8);
-        return new Token(NUMBER, num, line);
+        tokenStart = start;
+        tokenEnd = current;
+        return NUMBER;
     }
 
-    private Token string() {
+    private TokenType string() {
         advance();
         start = current;
         while (peek() != '"' && peek() != 0) {
             advance();
         }
-        String s = new String(input, start, current - start, StandardCharsets.UTF_8);
-        Token token = new Token(TokenType.STRING, s, line);
+        tokenStart = start;
+        tokenEnd = current;
         advance();
-        return token;
+        return TokenType.STRING;
     }
 
     private void advance() {
@@ -251,8 +379,55 @@ public class Scanner {
     }
 
     private char peek() {
-        if (current < input.length)
-            return (char) input[current];
+        if (available(0))
+            return (char) input.get(current);
         return 0;
     }
+
+    // garante input[current + ahead] na janela, lendo mais do canal se for preciso
+    private boolean available(int ahead) {
+        while (current + ahead >= end) {
+            if (channel == null || !refill())
+                return false;
+        }
+        return true;
+    }
+
+    private boolean refill() {
+        if (channelEof)
+            return false;
+
+        int keep = inToken ? start : current;
+        if (keep > 0) {
+            byte[] bytes = input.array();
+            System.arraycopy(bytes, keep, bytes, 0, end - keep);
+            end -= keep;
+            current -= keep;
+            start -= keep;
+            tokenStart -= keep;
+            tokenEnd -= keep;
+        } else if (end == input.capacity()) {
+            // um unico token maior que a janela
+            var bigger = ByteBuffer.allocate(input.capacity() * 2);
+            System.arraycopy(input.array(), 0, bigger.array(), 0, end);
+            input = bigger;
+            words = input.duplicate().clear().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        var target = input.duplicate().position(end);
+        try {
+            // ha espaco em target: canal bloqueante nunca devolve 0 aqui
+            int n = channel.read(target);
+            if (n == 0)
+                throw new IllegalStateException("channel returned no bytes; a blocking channel is required");
+            if (n < 0) {
+                channelEof = true;
+                return false;
+            }
+            end += n;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return true;
+    }
 }
\ No newline at end of file
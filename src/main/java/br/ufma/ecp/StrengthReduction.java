@@ -0,0 +1,79 @@
+package br.ufma.ecp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Multiplicacao e divisao por constante sem chamar o SO. x * c vira uma cadeia
+// de dobras e somas (Horner sobre os bits de c); x / 1 some e x / -1 vira neg.
+// So o tamanho decide: Math.multiply do SO da 16 voltas de ~30 instrucoes VM,
+// milhares de instrucoes Hack, e a cadeia mais longa aceita (MAX_SIZE instrucoes
+// de ~10 instrucoes Hack) fica sempre abaixo disso. O limite e para nao encher a ROM.
+final class StrengthReduction {
+
+    static final int MAX_SIZE = 32; // instrucoes VM no lugar de "push constant c; call"
+
+    // temporarios livres dentro de uma expressao (temp 0 e do let com array)
+    private static final Instruction SAVE_X = new Instruction("pop", "temp", 1);
+    private static final Instruction X = new Instruction("push", "temp", 1);
+    private static final Instruction SAVE_R = new Instruction("pop", "temp", 2);
+    private static final Instruction R = new Instruction("push", "temp", 2);
+    private static final Instruction ADD = new Instruction("add");
+    private static final List<String> REPEATABLE_SEGMENTS = List.of("constant", "local", "argument", "static", "this",
+            "that", "pointer", "temp");
+    private static final Instruction NEG = new Instruction("neg");
+
+    private StrengthReduction() {
+    }
+
+    // x ja esta na pilha; operand e a instrucao que o gerou, se foi uma so, ou
+    // null. So um push sem efeito colateral e repetido; o resto (um call, por
+    // exemplo) vai para temp 1. Devolve o codigo para x * constant ou null se a
+    // chamada a Math.multiply for melhor.
+    static List<Instruction> multiply(Instruction operand, int constant) {
+        if (constant == 0 || constant == Short.MIN_VALUE)
+            return null;
+        var code = new ArrayList<Instruction>();
+        int k = Math.abs(constant);
+        var x = repeatable(operand) ? operand : null;
+        if (x == null && k > 1) {
+            code.add(SAVE_X);
+            code.add(X);
+            x = X;
+        }
+        int top = 31 - Integer.numberOfLeadingZeros(k);
+        for (int bit = top - 1; bit >= 0; bit--) {
+            if (bit == top - 1) { // r ainda e x: r + r = r + x
+                code.add(x);
+                code.add(ADD);
+            } else {
+                code.add(SAVE_R);
+                code.add(R);
+                code.add(R);
+                code.add(ADD);
+            }
+            if ((k & 1 << bit) != 0) {
+                code.add(x);
+                code.add(ADD);
+            }
+        }
+        if (constant < 0)
+            code.add(NEG);
+        return code.size() <= MAX_SIZE ? code : null;
+    }
+
+    // ler de novo da o mesmo valor; temp 1 e 2 sao os rascunhos da cadeia
+    private static boolean repeatable(Instruction operand) {
+        return operand != null && operand.is("push") && REPEATABLE_SEGMENTS.contains(operand.arg())
+                && !(operand.is("push", "temp") && (operand.index() == 1 || operand.index() == 2));
+    }
+
+    // codigo para x / constant ou null se for melhor chamar Math.divide. A VM nao
+    // tem deslocamento: x / 2^k (mesmo com x >= 0) so sai com laco ou chamada.
+    static List<Instruction> divide(int constant) {
+        if (constant == 1)
+            return List.of();
+        if (constant == -1)
+            return List.of(NEG);
+        return null;
+    }
+}
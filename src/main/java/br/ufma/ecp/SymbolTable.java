@@ -1,71 +1,108 @@
 package br.ufma.ecp;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+// nomes sao os ids da tabela Names: cada escopo e um array indexado pelo id
 public class SymbolTable {
 
     public enum Kind {
         STATIC, FIELD, ARG, VAR
     };
 
-    public static record Symbol(String name, String type, Kind kind, int index) {
+    public static record Symbol(int name, int type, Kind kind, int index) {
     }
 
-    private Map<String, Symbol> classScope;
-    private Map<String, Symbol> subroutineScope;
-    private Map<Kind, Integer> countVars;
+    private Symbol[] classScope;
+    private Symbol[] subroutineScope;
+    private int[] subroutineNames; // ids definidos na subrotina atual, para limpar
+    private int subroutineCount;
+    private int[] classNames; // idem para a classe
+    private int classCount;
+    private int[] countVars;
 
     public SymbolTable() {
-        classScope = new HashMap<>();
-        subroutineScope = new HashMap<>();
-        countVars = new HashMap<>();
-
-        countVars.put(Kind.ARG, 0);
-        countVars.put(Kind.VAR, 0);
-        countVars.put(Kind.STATIC, 0);
-        countVars.put(Kind.FIELD, 0);
-        
+        classScope = new Symbol[64];
+        subroutineScope = new Symbol[64];
+        subroutineNames = new int[16];
+        classNames = new int[16];
+        countVars = new int[Kind.values().length];
+    }
+
+    // mesmo escopo de classe, escopo de subrotina vazio: cada thread compila com a sua copia
+    SymbolTable copy() {
+        var copy = new SymbolTable();
+        copy.classScope = classScope.clone();
+        copy.classNames = classNames.clone();
+        copy.classCount = classCount;
+        copy.countVars[Kind.STATIC.ordinal()] = countVars[Kind.STATIC.ordinal()];
+        copy.countVars[Kind.FIELD.ordinal()] = countVars[Kind.FIELD.ordinal()];
+        return copy;
+    }
+
+    // esvazia os dois escopos mantendo os arrays, para compilar outra classe
+    public void reset() {
+        startSubroutine();
+        for (int i = 0; i < classCount; i++)
+            classScope[classNames[i]] = null;
+        classCount = 0;
+        countVars[Kind.STATIC.ordinal()] = 0;
+        countVars[Kind.FIELD.ordinal()] = 0;
     }
 
     public void startSubroutine() {
 
-        subroutineScope.clear();
-        countVars.put(Kind.ARG, 0);
-        countVars.put(Kind.VAR, 0);
+        for (int i = 0; i < subroutineCount; i++)
+            subroutineScope[subroutineNames[i]] = null;
+        subroutineCount = 0;
+        countVars[Kind.ARG.ordinal()] = 0;
+        countVars[Kind.VAR.ordinal()] = 0;
 
 
     }
 
-    private Map<String,Symbol> scope (Kind kind) {
-        if (kind == Kind.STATIC || kind == Kind.FIELD){
-            return classScope;
+    // false se o nome ja existe no escopo (nada e definido)
+    boolean define(int name, int type, Kind kind) {
+
+        boolean classLevel = kind == Kind.STATIC || kind == Kind.FIELD;
+        if (classLevel) {
+            classScope = ensure(classScope, name);
         } else {
-            return subroutineScope;
+            subroutineScope = ensure(subroutineScope, name);
+        }
+        Symbol[] scopeTable = classLevel ? classScope : subroutineScope;
+        if (scopeTable[name] != null) return false;
+
+        scopeTable[name] = new Symbol(name, type, kind, varCount(kind));
+        if (classLevel) {
+            if (classCount == classNames.length)
+                classNames = Arrays.copyOf(classNames, classCount * 2);
+            classNames[classCount++] = name;
+        } else {
+            if (subroutineCount == subroutineNames.length)
+                subroutineNames = Arrays.copyOf(subroutineNames, subroutineCount * 2);
+            subroutineNames[subroutineCount++] = name;
         }
-    }
-
-    void define(String name, String type, Kind kind) {
-
-        Map<String,Symbol> scopeTable = scope(kind);
-        if (scopeTable.get(name) != null) throw new RuntimeException ("variable already defined");
-
-        Symbol s = new Symbol(name, type, kind, varCount(kind));
-        scopeTable.put(name, s);
-
-         countVars.put(kind, countVars.get(kind) + 1);
 
+        countVars[kind.ordinal()]++;
+        return true;
     }
 
-    public Symbol resolve (String name) {
-        Symbol s = subroutineScope.get(name);
-        if (s != null) return s;
-        else return classScope.get(name);
-        
+    public Symbol resolve (int name) {
+        if (name < subroutineScope.length && subroutineScope[name] != null)
+            return subroutineScope[name];
+        if (name < classScope.length)
+            return classScope[name];
+        return null;
     }
 
     int varCount(Kind kind) {
-        return countVars.get(kind);
+        return countVars[kind.ordinal()];
+    }
+
+    private static Symbol[] ensure(Symbol[] scope, int name) {
+        if (name < scope.length)
+            return scope;
+        return Arrays.copyOf(scope, Math.max(scope.length * 2, name + 1));
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,80 @@
+package br.ufma.ecp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Chamada da propria funcao logo antes do return vira laco: os argumentos
+// novos, ja na pilha, vao para o segmento argument, os locais voltam a 0 (como
+// o "function f n" faria) e um goto volta para o inicio. A recursao passa a
+// rodar com pilha constante.
+//   call F n; return                                  -> pop argument n-1..0; zera locais; goto
+//   call F n; pop temp 0; push constant 0; return     -> o mesmo, se todo return de F devolve 0 (void)
+// com rotulos podendo aparecer antes do return (do no fim de um if).
+// Em metodo o "push argument 0; pop pointer 0" do inicio refaz o this.
+public class TailCall implements VMPass {
+
+    static final String LOOP_LABEL = "TAIL_CALL";
+
+    @Override
+    public void run(List<Instruction> code) {
+        if (code.isEmpty() || !code.get(0).is("function"))
+            return;
+        var header = code.get(0);
+        boolean returnsZero = returnsOnlyZero(code);
+        var result = new ArrayList<Instruction>(code.size());
+        result.add(header);
+        boolean looped = false;
+        for (int i = 1; i < code.size(); i++) {
+            var instruction = code.get(i);
+            int rest = tailCall(code, i, header.arg(), returnsZero);
+            if (rest < 0) {
+                result.add(instruction);
+                continue;
+            }
+            for (int k = instruction.index() - 1; k >= 0; k--)
+                result.add(new Instruction("pop", "argument", k));
+            for (int j = 0; j < header.index(); j++) {
+                result.add(new Instruction("push", "constant", 0));
+                result.add(new Instruction("pop", "local", j));
+            }
+            result.add(new Instruction("goto", LOOP_LABEL));
+            looped = true;
+            i += rest;
+        }
+        if (!looped)
+            return;
+        result.add(1, new Instruction("label", LOOP_LABEL));
+        code.clear();
+        code.addAll(result);
+    }
+
+    // instrucoes depois do call que o laco substitui, ou -1 se code[i] nao e chamada
+    // de cauda. Rotulos entre o call e o return ficam (outros caminhos chegam neles).
+    private static int tailCall(List<Instruction> code, int i, String function, boolean returnsZero) {
+        if (!code.get(i).is("call", function))
+            return -1;
+        int j = i + 1;
+        boolean discarded = j < code.size() && code.get(j).is("pop", "temp", 0);
+        if (discarded) {
+            if (!returnsZero)
+                return -1;
+            j++;
+        }
+        int labels = j;
+        while (j < code.size() && code.get(j).is("label"))
+            j++;
+        if (discarded && !(j < code.size() && code.get(j).is("push", "constant", 0)))
+            return -1;
+        int ret = discarded ? j + 1 : j;
+        if (ret >= code.size() || !code.get(ret).is("return"))
+            return -1;
+        return j == labels ? ret - i : labels - i - 1;
+    }
+
+    private static boolean returnsOnlyZero(List<Instruction> code) {
+        for (int i = 0; i < code.size(); i++)
+            if (code.get(i).is("return") && (i == 0 || !code.get(i - 1).is("push", "constant", 0)))
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,11 @@
+package br.ufma.ecp;
+
+import java.util.List;
+
+// Passo de otimizacao sobre o codigo VM de uma subrotina (da instrucao
+// "function" ao fim), alterado no lugar. O mesmo passo pode ser usado por
+// varias threads ao mesmo tempo, entao nao guarda estado entre chamadas.
+public interface VMPass {
+
+    void run(List<Instruction> code);
+}
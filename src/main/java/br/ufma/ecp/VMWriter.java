@@ -1,7 +1,15 @@
 package br.ufma.ecp;
 
+import java.util.List;
+
+import br.ufma.ecp.token.Names;
+
 public class VMWriter {
+    static final int STATIC_SEGMENT_SIZE = 240; // RAM 16 a 255, dividida por todas as classes do programa
+
     private StringBuilder vmOutput = new StringBuilder();
+    private Names names; // tabela dos ids de writeCall/writeFunction, a mesma do Parser
+    private int calls; // instrucoes call escritas, para saber se um trecho tem efeitos colaterais
 
     enum Segment {
         CONST("constant"),
@@ -32,10 +40,65 @@ public class VMWriter {
         NOT
     };
 
+    // reaproveita o buffer ja crescido para a proxima classe
+    void reset() {
+        vmOutput.setLength(0);
+    }
+
+    void names(Names names) {
+        this.names = names;
+    }
+
     public String vmOutput() {
         return vmOutput.toString();
     }
 
+    int length() {
+        return vmOutput.length();
+    }
+
+    // passa o codigo gerado a partir de from (uma subrotina inteira) pelos passes;
+    // devolve quantas instrucoes a menos ficaram
+    int optimize(int from, List<VMPass> passes) {
+        var code = Instruction.parseAll(vmOutput.subSequence(from, vmOutput.length()));
+        int before = code.size();
+        for (var pass : passes)
+            pass.run(code);
+        vmOutput.setLength(from);
+        for (var instruction : code)
+            write(instruction);
+        return before - code.size();
+    }
+
+    int calls() {
+        return calls;
+    }
+
+    // descarta o codigo gerado a partir de length
+    void truncate(int length) {
+        vmOutput.setLength(length);
+    }
+
+    // descarta o trecho [from, to), mantendo o que veio depois
+    void delete(int from, int to) {
+        vmOutput.delete(from, to);
+    }
+
+    // a instrucao [from, to) se o trecho tiver uma so, senao null
+    Instruction single(int from, int to) {
+        int end = vmOutput.indexOf("\n", from);
+        return end == to - 1 ? Instruction.parse(vmOutput.substring(from, end)) : null;
+    }
+
+    void write(Instruction instruction) {
+        vmOutput.append(instruction).append('\n');
+    }
+
+    // codigo ja gerado por outro VMWriter
+    void append(CharSequence code) {
+        vmOutput.append(code);
+    }
+
     void writePush(Segment segment, int index) {
         vmOutput.append(String.format("push %s %d\n", segment.value, index));
     }
@@ -62,9 +125,22 @@ public class VMWriter {
     }
 
     void writeCall(String name, int nArgs) {
+        calls++;
         vmOutput.append(String.format("call %s %d\n", name, nArgs));
     }
 
+    // Classe.subrotina montado direto no buffer a partir dos ids em Names
+    void writeCall(int className, int name, int nArgs) {
+        calls++;
+        vmOutput.append("call ").append(names.name(className)).append('.').append(names.name(name))
+                .append(' ').append(nArgs).append('\n');
+    }
+
+    void writeFunction(int className, int name, int nLocals) {
+        vmOutput.append("function ").append(names.name(className)).append('.').append(names.name(name))
+                .append(' ').append(nLocals).append('\n');
+    }
+
     void writeFunction(String name, int nLocals) {
         vmOutput.append(String.format("function %s %d\n", name, nLocals));
     }
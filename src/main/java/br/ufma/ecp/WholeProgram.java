@@ -0,0 +1,340 @@
+package br.ufma.ecp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Programa inteiro (as classes de um diretorio) para otimizacoes que cruzam
+// classes. O codigo VM de cada classe e separado em funcoes; as instrucoes
+// call entre elas formam o grafo de chamadas. Chamadas ao SO que nao faz
+// parte do programa ficam fora do grafo.
+public class WholeProgram {
+
+    // da instrucao "function" ate antes da proxima
+    public record Function(String name, List<Instruction> code) {
+    }
+
+    private final Map<String, List<Function>> classes = new LinkedHashMap<>();
+    private final Map<String, Function> functions = new HashMap<>();
+
+    public void add(String className, CharSequence vmCode) {
+        var list = new ArrayList<Function>();
+        List<Instruction> code = null;
+        for (var instruction : Instruction.parseAll(vmCode)) {
+            if (instruction.is("function")) {
+                code = new ArrayList<>();
+                var function = new Function(instruction.arg(), code);
+                list.add(function);
+                functions.put(function.name(), function);
+            }
+            if (code != null)
+                code.add(instruction);
+        }
+        classes.put(className, list);
+    }
+
+    public Set<String> classNames() {
+        return classes.keySet();
+    }
+
+    public Function function(String name) {
+        return functions.get(name);
+    }
+
+    public String vmOutput(String className) {
+        var out = new StringBuilder();
+        for (var function : classes.get(className))
+            for (var instruction : function.code())
+                out.append(instruction).append('\n');
+        return out.toString();
+    }
+
+    // instrucoes VM do programa todo
+    public int size() {
+        int size = 0;
+        for (var function : functions.values())
+            size += function.code().size();
+        return size;
+    }
+
+    // com o SO no programa a execucao comeca em Sys.init, que chama Main.main
+    public String entry() {
+        return functions.containsKey("Sys.init") ? "Sys.init" : "Main.main";
+    }
+
+    public Set<String> reachable(String entry) {
+        var reached = new HashSet<String>();
+        var pending = new ArrayDeque<String>();
+        if (functions.containsKey(entry)) {
+            reached.add(entry);
+            pending.add(entry);
+        }
+        while (!pending.isEmpty()) {
+            for (var instruction : functions.get(pending.poll()).code()) {
+                if (instruction.is("call") && functions.containsKey(instruction.arg())
+                        && reached.add(instruction.arg()))
+                    pending.add(instruction.arg());
+            }
+        }
+        return reached;
+    }
+
+    // tira as funcoes que nenhuma chamada alcanca a partir de entry(); sem ponto
+    // de entrada no programa nada e removido. Devolve as funcoes removidas.
+    public List<Function> removeDeadFunctions() {
+        var removed = new ArrayList<Function>();
+        if (!functions.containsKey(entry()))
+            return removed;
+        var live = reachable(entry());
+        for (var list : classes.values()) {
+            list.removeIf(function -> {
+                if (live.contains(function.name()))
+                    return false;
+                removed.add(function);
+                return true;
+            });
+        }
+        for (var function : removed)
+            functions.remove(function.name());
+        return removed;
+    }
+
+    // --- estaticos do programa
+
+    // posicoes de static que o tradutor vai alocar: os indices distintos de cada classe
+    public int staticsUsed() {
+        int used = 0;
+        for (var list : classes.values())
+            used += staticSlots(list).size();
+        return used;
+    }
+
+    private static Set<Integer> staticSlots(List<Function> list) {
+        var slots = new HashSet<Integer>();
+        for (var function : list)
+            for (var instruction : function.code())
+                if ("static".equals(instruction.arg()))
+                    slots.add(instruction.index());
+        return slots;
+    }
+
+    // literais do pool do Parser (STRING_POOL) voltam a ser montados a cada uso,
+    // da ultima classe para a primeira e do ultimo literal para o primeiro, ate os
+    // estaticos caberem em budget. O uso
+    //   push static s; if-goto L; call C.string$i 0; pop static s; label L; push static s
+    // vira "call C.string$i 0", que cria uma String nova como o String.new faria.
+    // Literal com algum uso fora desse formato fica no pool, e entao staticsUsed()
+    // pode continuar acima de budget: quem chama confere (o App falha). Deve rodar
+    // antes do inlining, que copia o corpo de C.string$i. Devolve os literais tirados do pool.
+    public int unpoolStrings(int budget) {
+        int used = staticsUsed();
+        int unpooled = 0;
+        var names = new ArrayList<>(classes.keySet());
+        for (int c = names.size() - 1; c >= 0 && used > budget; c--) {
+            var list = classes.get(names.get(c));
+            var builders = new ArrayList<String>();
+            for (var function : list)
+                if (function.name().startsWith(names.get(c) + ".string$"))
+                    builders.add(function.name());
+            for (int b = builders.size() - 1; b >= 0 && used > budget; b--) {
+                if (unpool(list, builders.get(b))) {
+                    used--;
+                    unpooled++;
+                }
+            }
+        }
+        return unpooled;
+    }
+
+    private static boolean unpool(List<Function> list, String builder) {
+        int slot = -1, uses = 0;
+        for (var function : list) {
+            var code = function.code();
+            for (int i = 0; i < code.size(); i++) {
+                if (!code.get(i).is("call", builder))
+                    continue;
+                int s = pooledUse(code, i, builder);
+                if (s < 0 || slot >= 0 && s != slot)
+                    return false;
+                slot = s;
+                uses++;
+            }
+        }
+        if (slot < 0)
+            return false;
+        int references = 0; // cada uso do formato le ou escreve o estatico 3 vezes
+        for (var function : list)
+            for (var instruction : function.code())
+                if (instruction.is("push", "static", slot) || instruction.is("pop", "static", slot))
+                    references++;
+        if (references != 3 * uses)
+            return false;
+        var call = new Instruction("call", builder, 0);
+        for (var function : list) {
+            var code = function.code();
+            for (int i = 0; i < code.size(); i++) {
+                if (!code.get(i).is("call", builder))
+                    continue;
+                var ready = code.get(i - 1).arg();
+                code.subList(i - 2, i + 4).clear();
+                code.add(i - 2, call);
+                if (jumpsTo(code, ready)) // outro desvio ainda chega ao rotulo
+                    code.add(i - 1, new Instruction("label", ready));
+                i -= 2;
+            }
+        }
+        return true;
+    }
+
+    // estatico do uso do literal em code[call], ou -1 se nao tiver o formato do pool
+    private static int pooledUse(List<Instruction> code, int call, String builder) {
+        if (call < 2 || call + 3 >= code.size() || !code.get(call).is("call", builder, 0))
+            return -1;
+        var load = code.get(call - 2);
+        var branch = code.get(call - 1);
+        if (!load.is("push", "static") || !branch.is("if-goto"))
+            return -1;
+        int slot = load.index();
+        return code.get(call + 1).is("pop", "static", slot) && code.get(call + 2).is("label", branch.arg())
+                && code.get(call + 3).is("push", "static", slot) ? slot : -1;
+    }
+
+    private static boolean jumpsTo(List<Instruction> code, String label) {
+        for (var instruction : code)
+            if (instruction.isJump() && instruction.arg().equals(label))
+                return true;
+        return false;
+    }
+
+    // --- inlining de funcoes pequenas
+
+    public static final int DEFAULT_INLINE_SIZE = 10;
+
+    // troca cada "call f n" por uma copia do corpo de f quando f tem ate maxSize
+    // instrucoes (sem contar function e o return final). Argumentos e locais de f
+    // viram locais novos de quem chama; pointer 0 e 1 sao guardados e restaurados
+    // se f os muda, como faria o return. Funcoes com static so entram na propria
+    // classe (static e do arquivo). So um nivel: os corpos copiados sao os
+    // originais, entao o resultado nao depende da ordem. Devolve as chamadas trocadas.
+    public int inline(int maxSize) {
+        var candidates = new HashMap<String, List<Instruction>>();
+        for (var function : functions.values())
+            if (inlinable(function, maxSize))
+                candidates.put(function.name(), List.copyOf(function.code()));
+        int inlined = 0;
+        for (var list : classes.values()) {
+            for (var function : list) {
+                var code = function.code();
+                var header = code.get(0);
+                int base = header.index(), extra = 0, sites = 0;
+                var result = new ArrayList<Instruction>(code.size());
+                for (var instruction : code) {
+                    var callee = instruction.is("call") ? candidates.get(instruction.arg()) : null;
+                    if (callee == null || instruction.arg().equals(function.name())
+                            || usesStatic(callee) && !className(instruction.arg()).equals(className(function.name()))) {
+                        result.add(instruction);
+                        continue;
+                    }
+                    extra = Math.max(extra, expand(callee, instruction.index(), base, "INLINE" + sites++, result));
+                    inlined++;
+                }
+                if (sites > 0) {
+                    result.set(0, new Instruction("function", header.arg(), base + extra));
+                    code.clear();
+                    code.addAll(result);
+                }
+            }
+        }
+        return inlined;
+    }
+
+    private static boolean inlinable(Function function, int maxSize) {
+        var code = function.code();
+        if (code.size() < 2 || code.size() - 2 > maxSize || !code.get(code.size() - 1).is("return"))
+            return false;
+        for (var instruction : code)
+            if (instruction.is("call", function.name()))
+                return false;
+        return true;
+    }
+
+    private static boolean usesStatic(List<Instruction> code) {
+        for (var instruction : code)
+            if ("static".equals(instruction.arg()))
+                return true;
+        return false;
+    }
+
+    private static String className(String functionName) {
+        return functionName.substring(0, functionName.indexOf('.'));
+    }
+
+    // escreve em out o corpo de callee com os nArgs argumentos ja na pilha,
+    // usando os locais a partir de base; devolve quantos locais usou
+    private static int expand(List<Instruction> callee, int nArgs, int base, String prefix, List<Instruction> out) {
+        int nLocals = callee.get(0).index();
+        int next = base + nArgs + nLocals;
+        int savedThis = writes(callee, 0) ? next++ : -1;
+        int savedThat = writes(callee, 1) ? next++ : -1;
+        for (int k = nArgs - 1; k >= 0; k--)
+            out.add(new Instruction("pop", "local", base + k));
+        for (int j = 0; j < nLocals; j++) { // como o "function f n" faria
+            out.add(new Instruction("push", "constant", 0));
+            out.add(new Instruction("pop", "local", base + nArgs + j));
+        }
+        if (savedThis >= 0)
+            save(out, 0, savedThis);
+        if (savedThat >= 0)
+            save(out, 1, savedThat);
+
+        var end = prefix + "_END";
+        boolean jumpsToEnd = false;
+        for (int i = 1; i < callee.size(); i++) {
+            var instruction = callee.get(i);
+            if (instruction.is("return")) {
+                if (i < callee.size() - 1) {
+                    out.add(new Instruction("goto", end));
+                    jumpsToEnd = true;
+                }
+            } else if (instruction.is("label") || instruction.isJump()) {
+                out.add(new Instruction(instruction.op(), prefix + "_" + instruction.arg()));
+            } else if ("argument".equals(instruction.arg())) {
+                out.add(new Instruction(instruction.op(), "local", base + instruction.index()));
+            } else if ("local".equals(instruction.arg())) {
+                out.add(new Instruction(instruction.op(), "local", base + nArgs + instruction.index()));
+            } else {
+                out.add(instruction);
+            }
+        }
+        if (jumpsToEnd)
+            out.add(new Instruction("label", end));
+        // o valor devolvido fica no topo; so os ponteiros voltam
+        if (savedThat >= 0)
+            restore(out, 1, savedThat);
+        if (savedThis >= 0)
+            restore(out, 0, savedThis);
+        return next - base;
+    }
+
+    private static boolean writes(List<Instruction> code, int pointer) {
+        for (var instruction : code)
+            if (instruction.is("pop", "pointer", pointer))
+                return true;
+        return false;
+    }
+
+    private static void save(List<Instruction> out, int pointer, int local) {
+        out.add(new Instruction("push", "pointer", pointer));
+        out.add(new Instruction("pop", "local", local));
+    }
+
+    private static void restore(List<Instruction> out, int pointer, int local) {
+        out.add(new Instruction("push", "local", local));
+        out.add(new Instruction("pop", "pointer", pointer));
+    }
+}
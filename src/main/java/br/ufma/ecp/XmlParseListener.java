@@ -0,0 +1,53 @@
+package br.ufma.ecp;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import br.ufma.ecp.token.TokenBuffer;
+
+// arvore de analise no formato XML do nand2tetris, uma tag por linha. Com um
+// canal o documento vai saindo durante a analise; chame flush() no fim.
+public class XmlParseListener implements ParseListener {
+
+    private final XmlWriter writer;
+    private final ByteArrayOutputStream memory; // null quando escreve em um canal
+
+    public XmlParseListener() {
+        memory = new ByteArrayOutputStream();
+        writer = new XmlWriter(Channels.newChannel(memory), 4096);
+    }
+
+    public XmlParseListener(WritableByteChannel out) {
+        memory = null;
+        writer = new XmlWriter(out);
+    }
+
+    @Override
+    public void startNonTerminal(NonTerminal rule) {
+        writer.startTag(rule);
+    }
+
+    @Override
+    public void endNonTerminal(NonTerminal rule) {
+        writer.endTag(rule);
+    }
+
+    @Override
+    public void terminal(TokenBuffer tokens, int index) {
+        writer.token(tokens, index);
+    }
+
+    public void flush() {
+        writer.flush();
+    }
+
+    // documento em memoria; vazio quando a saida e um canal
+    public String output() {
+        if (memory == null)
+            return "";
+        writer.flush();
+        return memory.toString(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,150 @@
+package br.ufma.ecp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import br.ufma.ecp.token.TokenBuffer;
+import br.ufma.ecp.token.TokenType;
+
+// Escreve XML de tokens (T.xml) e da arvore de analise direto em um canal,
+// por um buffer de bytes fixo. As tags de cada TokenType e NonTerminal sao
+// montadas uma vez; simbolos e palavras reservadas viram uma linha pronta.
+public class XmlWriter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final TokenType[] TYPES = TokenType.values();
+    private static final NonTerminal[] RULES = NonTerminal.values();
+
+    private static final byte[][] LINES = new byte[TYPES.length][]; // lexema fixo: linha inteira
+    private static final byte[][] OPEN = new byte[TYPES.length][];
+    private static final byte[][] CLOSE = new byte[TYPES.length][];
+    private static final byte[][] START = new byte[RULES.length][];
+    private static final byte[][] END = new byte[RULES.length][];
+    private static final byte[][] ESCAPES = new byte[256][];
+    private static final byte[] TOKENS_START = bytes("<tokens>\r\n");
+    private static final byte[] TOKENS_END = bytes("</tokens>\r\n");
+
+    static {
+        ESCAPES['<'] = bytes("&lt;");
+        ESCAPES['>'] = bytes("&gt;");
+        ESCAPES['"'] = bytes("&quot;");
+        ESCAPES['&'] = bytes("&amp;");
+
+        for (TokenType type : TYPES) {
+            String category = category(type);
+            OPEN[type.ordinal()] = bytes("<" + category + "> ");
+            CLOSE[type.ordinal()] = bytes(" </" + category + ">\r\n");
+            if (type.lexeme != null)
+                LINES[type.ordinal()] = bytes("<" + category + "> " + escape(type.lexeme) + " </" + category + ">\r\n");
+        }
+        for (NonTerminal rule : RULES) {
+            START[rule.ordinal()] = bytes("<" + rule.tag + ">\r\n");
+            END[rule.ordinal()] = bytes("</" + rule.tag + ">\r\n");
+        }
+    }
+
+    private final WritableByteChannel out;
+    private final ByteBuffer buffer;
+
+    public XmlWriter(WritableByteChannel out) {
+        this(out, BUFFER_SIZE);
+    }
+
+    public XmlWriter(WritableByteChannel out, int bufferSize) {
+        this.out = out;
+        this.buffer = ByteBuffer.allocate(Math.max(64, bufferSize));
+    }
+
+    // arquivo T.xml inteiro, sem o EOF
+    public void tokens(TokenBuffer tokens) {
+        put(TOKENS_START);
+        for (int i = 0; i < tokens.size() && tokens.type(i) != TokenType.EOF; i++)
+            token(tokens, i);
+        put(TOKENS_END);
+    }
+
+    public void token(TokenBuffer tokens, int index) {
+        int type = tokens.type(index).ordinal();
+        if (LINES[type] != null) {
+            put(LINES[type]);
+            return;
+        }
+        put(OPEN[type]);
+        ByteBuffer source = tokens.source();
+        if (source != null) {
+            int start = tokens.start(index);
+            putEscaped(source, start, start + tokens.length(index));
+        } else {
+            byte[] lexeme = bytes(tokens.lexeme(index));
+            putEscaped(ByteBuffer.wrap(lexeme), 0, lexeme.length);
+        }
+        put(CLOSE[type]);
+    }
+
+    public void startTag(NonTerminal rule) {
+        put(START[rule.ordinal()]);
+    }
+
+    public void endTag(NonTerminal rule) {
+        put(END[rule.ordinal()]);
+    }
+
+    // esvazia o buffer no canal; o canal continua aberto
+    public void flush() {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining())
+                out.write(buffer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.clear();
+    }
+
+    private void put(byte[] bytes) {
+        if (buffer.remaining() < bytes.length)
+            flush();
+        buffer.put(bytes);
+    }
+
+    private void putEscaped(ByteBuffer source, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.remaining() < 6) // maior escape: &quot;
+                flush();
+            byte b = source.get(i);
+            byte[] escape = ESCAPES[b & 0xFF];
+            if (escape == null)
+                buffer.put(b);
+            else
+                buffer.put(escape);
+        }
+    }
+
+    // mesmas categorias de Token.toString
+    private static String category(TokenType type) {
+        if (type.lexeme != null && type.lexeme.length() == 1 && TokenType.isSymbol(type.lexeme.charAt(0)))
+            return "symbol";
+        if (type == TokenType.NUMBER)
+            return "integerConstant";
+        if (type == TokenType.IDENT)
+            return "identifier";
+        if (type == TokenType.STRING)
+            return "stringConstant";
+        return "keyword";
+    }
+
+    private static String escape(String lexeme) {
+        var result = new StringBuilder();
+        for (byte b : bytes(lexeme))
+            result.append(ESCAPES[b & 0xFF] != null ? new String(ESCAPES[b & 0xFF], StandardCharsets.UTF_8) : (char) b);
+        return result.toString();
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,93 @@
+package br.ufma.ecp.token;
+
+import static br.ufma.ecp.token.TokenType.BOOLEAN;
+import static br.ufma.ecp.token.TokenType.CHAR;
+import static br.ufma.ecp.token.TokenType.CLASS;
+import static br.ufma.ecp.token.TokenType.CONSTRUCTOR;
+import static br.ufma.ecp.token.TokenType.DO;
+import static br.ufma.ecp.token.TokenType.ELSE;
+import static br.ufma.ecp.token.TokenType.FALSE;
+import static br.ufma.ecp.token.TokenType.FIELD;
+import static br.ufma.ecp.token.TokenType.FUNCTION;
+import static br.ufma.ecp.token.TokenType.IDENT;
+import static br.ufma.ecp.token.TokenType.IF;
+import static br.ufma.ecp.token.TokenType.INT;
+import static br.ufma.ecp.token.TokenType.LET;
+import static br.ufma.ecp.token.TokenType.METHOD;
+import static br.ufma.ecp.token.TokenType.NULL;
+import static br.ufma.ecp.token.TokenType.RETURN;
+import static br.ufma.ecp.token.TokenType.STATIC;
+import static br.ufma.ecp.token.TokenType.THIS;
+import static br.ufma.ecp.token.TokenType.TRUE;
+import static br.ufma.ecp.token.TokenType.VAR;
+import static br.ufma.ecp.token.TokenType.VOID;
+import static br.ufma.ecp.token.TokenType.WHILE;
+
+import java.nio.ByteBuffer;
+
+// reconhece as 21 palavras reservadas direto nos bytes da entrada:
+// o tamanho e os primeiros caracteres ja determinam o unico candidato,
+// que depois e conferido byte a byte. Nada e alocado.
+public class Keywords {
+
+    private Keywords() {
+    }
+
+    public static TokenType lookup(ByteBuffer input, int start, int length) {
+        switch (length) {
+            case 2:
+                switch (input.get(start)) {
+                    case 'i': return matches(input, start, IF);
+                    case 'd': return matches(input, start, DO);
+                }
+                break;
+            case 3:
+                switch (input.get(start)) {
+                    case 'v': return matches(input, start, VAR);
+                    case 'i': return matches(input, start, INT);
+                    case 'l': return matches(input, start, LET);
+                }
+                break;
+            case 4:
+                switch (input.get(start)) {
+                    case 'c': return matches(input, start, CHAR);
+                    case 'v': return matches(input, start, VOID);
+                    case 'n': return matches(input, start, NULL);
+                    case 'e': return matches(input, start, ELSE);
+                    case 't': return matches(input, start, input.get(start + 1) == 'r' ? TRUE : THIS);
+                }
+                break;
+            case 5:
+                switch (input.get(start)) {
+                    case 'w': return matches(input, start, WHILE);
+                    case 'c': return matches(input, start, CLASS);
+                    case 'f': return matches(input, start, input.get(start + 1) == 'i' ? FIELD : FALSE);
+                }
+                break;
+            case 6:
+                switch (input.get(start)) {
+                    case 'm': return matches(input, start, METHOD);
+                    case 's': return matches(input, start, STATIC);
+                    case 'r': return matches(input, start, RETURN);
+                }
+                break;
+            case 7:
+                return matches(input, start, BOOLEAN);
+            case 8:
+                return matches(input, start, FUNCTION);
+            case 11:
+                return matches(input, start, CONSTRUCTOR);
+        }
+        return IDENT;
+    }
+
+    private static TokenType matches(ByteBuffer input, int start, TokenType keyword) {
+        String lexeme = keyword.lexeme;
+        for (int i = 0; i < lexeme.length(); i++) {
+            if (input.get(start + i) != lexeme.charAt(i))
+                return IDENT;
+        }
+        return keyword;
+    }
+
+}
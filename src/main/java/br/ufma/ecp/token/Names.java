@@ -0,0 +1,121 @@
+package br.ufma.ecp.token;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Tabela de nomes de uma sessao de compilacao: cada identificador recebe um id
+// inteiro denso na primeira vez que o Scanner o encontra, direto dos bytes da
+// entrada. Dali em diante tabela de simbolos e gerador de codigo trabalham com
+// o id; a String so e criada uma vez por nome distinto. Scanner, TokenBuffer e
+// Parser de uma compilacao usam a mesma tabela; quem a cria (o Scanner, ou o
+// Parser do pool, que a reaproveita entre arquivos) decide quando reset().
+// Toda tabela comeca com os mesmos nomes (vazio, palavras reservadas) nos
+// mesmos ids, entao ids guardados em constantes valem para qualquer uma.
+public class Names {
+
+    private static final List<String> PREDEFINED = predefined();
+
+    private int[] slots = new int[1024]; // id + 1, 0 = vazio
+    private int[] hashes = new int[512];
+    private byte[][] bytes = new byte[512][];
+    private volatile String[] strings = new String[512];
+    private int size;
+
+    public Names() {
+        for (var name : PREDEFINED)
+            intern(name);
+    }
+
+    private static List<String> predefined() {
+        var names = new ArrayList<String>();
+        names.add("");
+        for (var type : TokenType.values())
+            if (TokenType.isKeyword(type))
+                names.add(type.lexeme);
+        return names;
+    }
+
+    // esquece os nomes acrescentados depois dos predefinidos; os ids deles deixam de valer
+    public synchronized void reset() {
+        int predefined = PREDEFINED.size();
+        Arrays.fill(bytes, predefined, size, null);
+        Arrays.fill(strings, predefined, size, null);
+        size = predefined;
+        rehash(slots.length);
+    }
+
+    public synchronized int intern(ByteBuffer input, int start, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++)
+            hash = 31 * hash + input.get(start + i);
+
+        int mask = slots.length - 1;
+        for (int slot = mix(hash) & mask;; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (id < 0)
+                return add(slot, hash, input, start, length);
+            if (hashes[id] == hash && same(bytes[id], input, start, length))
+                return id;
+        }
+    }
+
+    public int intern(String name) {
+        byte[] utf8 = name.getBytes(StandardCharsets.UTF_8);
+        return intern(ByteBuffer.wrap(utf8), 0, utf8.length);
+    }
+
+    public String name(int id) {
+        return strings[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private int add(int slot, int hash, ByteBuffer input, int start, int length) {
+        int id = size++;
+        if (id == hashes.length) {
+            hashes = Arrays.copyOf(hashes, id * 2);
+            bytes = Arrays.copyOf(bytes, id * 2);
+            strings = Arrays.copyOf(strings, id * 2);
+        }
+        byte[] name = new byte[length];
+        input.get(start, name);
+        hashes[id] = hash;
+        bytes[id] = name;
+        strings[id] = new String(name, StandardCharsets.UTF_8);
+        slots[slot] = id + 1;
+
+        if (size * 2 > slots.length)
+            rehash(slots.length * 2);
+        return id;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(hashes[id]) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = id + 1;
+        }
+    }
+
+    private static boolean same(byte[] name, ByteBuffer input, int start, int length) {
+        if (name.length != length)
+            return false;
+        for (int i = 0; i < length; i++)
+            if (name[i] != input.get(start + i))
+                return false;
+        return true;
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+}
@@ -0,0 +1,221 @@
+package br.ufma.ecp.token;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// fluxo de tokens empacotado em arrays primitivos, um indice por token.
+// O lexema so vira String quando alguem pede por ele (lexeme/token).
+public class TokenBuffer {
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private ByteBuffer source;
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int[] values; // valor ja convertido de NUMBER, id em Names de IDENT
+    private String[] texts; // lexemas guardados quando nao ha source (streaming)
+    private Names names; // de onde vem os ids de IDENT; o Scanner que preenche define
+    private int size;
+
+    public TokenBuffer(ByteBuffer source) {
+        this(source, Math.min(source.remaining() / 8, 1 << 20));
+    }
+
+    // sem source: os lexemas variaveis chegam prontos por add(type, text, ...)
+    public TokenBuffer(int capacity) {
+        this(null, capacity);
+        texts = new String[types.length];
+    }
+
+    public TokenBuffer(ByteBuffer source, int capacity) {
+        this.source = source;
+        capacity = Math.max(16, capacity);
+        types = new byte[capacity];
+        starts = new int[capacity];
+        lengths = new int[capacity];
+        lines = new int[capacity];
+        values = new int[capacity];
+    }
+
+    // esvazia o buffer para os tokens de outra entrada, mantendo a capacidade
+    public void reset(ByteBuffer source) {
+        this.source = source;
+        texts = source == null ? texts : null;
+        size = 0;
+    }
+
+    public void add(TokenType type, int start, int length, int line, int value) {
+        if (size == types.length)
+            grow(size * 2);
+        types[size] = (byte) type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        values[size] = value;
+        size++;
+    }
+
+    public void add(TokenType type, String text, int line, int value) {
+        add(type, 0, text.length(), line, value);
+        texts[size - 1] = text;
+    }
+
+    // descarta os tokens antes de index, que passa a ser o token 0
+    public void retainFrom(int index) {
+        int count = size - index;
+        System.arraycopy(types, index, types, 0, count);
+        System.arraycopy(starts, index, starts, 0, count);
+        System.arraycopy(lengths, index, lengths, 0, count);
+        System.arraycopy(lines, index, lines, 0, count);
+        System.arraycopy(values, index, values, 0, count);
+        if (texts != null) {
+            System.arraycopy(texts, index, texts, 0, count);
+            Arrays.fill(texts, count, size, null);
+        }
+        size = count;
+    }
+
+    // copia os count primeiros tokens de other, somando lineOffset as linhas
+    public void append(TokenBuffer other, int count, int lineOffset) {
+        append(other, 0, count, 0, lineOffset);
+    }
+
+    // copia count tokens de other a partir de from, deslocando inicios e linhas.
+    // Os ids de IDENT so valem na tabela de other: um buffer sem tabela passa a usa-la.
+    public void append(TokenBuffer other, int from, int count, int startOffset, int lineOffset) {
+        if (names == null)
+            names = other.names;
+        if (size + count > types.length)
+            grow(Math.max(size * 2, size + count));
+        System.arraycopy(other.types, from, types, size, count);
+        System.arraycopy(other.lengths, from, lengths, size, count);
+        System.arraycopy(other.values, from, values, size, count);
+        for (int i = 0; i < count; i++) {
+            starts[size + i] = other.starts[from + i] + startOffset;
+            lines[size + i] = other.lines[from + i] + lineOffset;
+        }
+        size += count;
+    }
+
+    // troca os tokens [from, to) pelos count primeiros de other, no proprio buffer;
+    // os de to em diante andam startOffset bytes e lineOffset linhas
+    public void replace(int from, int to, TokenBuffer other, int count, int startOffset, int lineOffset) {
+        int shift = count - (to - from);
+        if (size + shift > types.length)
+            grow(Math.max(size * 2, size + shift));
+        if (shift != 0) {
+            int tail = size - to;
+            System.arraycopy(types, to, types, to + shift, tail);
+            System.arraycopy(starts, to, starts, to + shift, tail);
+            System.arraycopy(lengths, to, lengths, to + shift, tail);
+            System.arraycopy(lines, to, lines, to + shift, tail);
+            System.arraycopy(values, to, values, to + shift, tail);
+            if (texts != null)
+                System.arraycopy(texts, to, texts, to + shift, tail);
+        }
+        System.arraycopy(other.types, 0, types, from, count);
+        System.arraycopy(other.starts, 0, starts, from, count);
+        System.arraycopy(other.lengths, 0, lengths, from, count);
+        System.arraycopy(other.lines, 0, lines, from, count);
+        System.arraycopy(other.values, 0, values, from, count);
+        if (texts != null && other.texts != null)
+            System.arraycopy(other.texts, 0, texts, from, count);
+        size += shift;
+        if (texts != null && shift < 0)
+            Arrays.fill(texts, size, size - shift, null);
+        for (int i = from + count; i < size; i++) {
+            starts[i] += startOffset;
+            lines[i] += lineOffset;
+        }
+    }
+
+    // primeiro byte do token na entrada, incluindo a aspa de abertura de STRING
+    public int begin(int i) {
+        return type(i) == TokenType.STRING ? starts[i] - 1 : starts[i];
+    }
+
+    // byte seguinte ao token, incluindo a aspa de fechamento de STRING
+    public int end(int i) {
+        return type(i) == TokenType.STRING ? starts[i] + lengths[i] + 1 : starts[i] + lengths[i];
+    }
+
+    private void grow(int capacity) {
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+        values = Arrays.copyOf(values, capacity);
+        if (texts != null)
+            texts = Arrays.copyOf(texts, capacity);
+    }
+
+    // bytes da entrada de onde saem start/length; null no modo streaming
+    public ByteBuffer source() {
+        return source;
+    }
+
+    // outra visao dos mesmos bytes (a entrada mudou de lugar ou de tamanho), sem mexer nos tokens
+    public void source(ByteBuffer source) {
+        this.source = source;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Names names() {
+        return names;
+    }
+
+    public void names(Names names) {
+        this.names = names;
+    }
+
+    public TokenType type(int i) {
+        return TYPES[types[i]];
+    }
+
+    public int start(int i) {
+        return starts[i];
+    }
+
+    public int length(int i) {
+        return lengths[i];
+    }
+
+    public int line(int i) {
+        return lines[i];
+    }
+
+    public int value(int i) {
+        return values[i];
+    }
+
+    public String lexeme(int i) {
+        TokenType type = type(i);
+        if (type.lexeme != null)
+            return type.lexeme;
+        if (type == TokenType.IDENT)
+            return names.name(values[i]);
+        if (texts != null)
+            return texts[i];
+        return decode(source, starts[i], lengths[i]);
+    }
+
+    public Token token(int i) {
+        return new Token(type(i), lexeme(i), lines[i]);
+    }
+
+    // decodifica um trecho do buffer sem mexer em position/limit
+    public static String decode(ByteBuffer buffer, int start, int length) {
+        if (buffer.hasArray())
+            return new String(buffer.array(), buffer.arrayOffset() + start, length, StandardCharsets.UTF_8);
+        byte[] bytes = new byte[length];
+        buffer.get(start, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+}
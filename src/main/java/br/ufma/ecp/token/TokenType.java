@@ -4,17 +4,17 @@ import java.util.List;
 
 public enum TokenType {
      // symbols
-     LPAREN,RPAREN,
-     LBRACE, RBRACE,
-     LBRACKET,RBRACKET,
-     
-     COMMA, SEMICOLON, DOT,
-       
-     PLUS,  MINUS,ASTERISK, SLASH,
-     
-     AND, OR, NOT,
-     
-     LT, GT, EQ,
+     LPAREN("("),RPAREN(")"),
+     LBRACE("{"), RBRACE("}"),
+     LBRACKET("["),RBRACKET("]"),
+
+     COMMA(","), SEMICOLON(";"), DOT("."),
+
+     PLUS("+"),  MINUS("-"),ASTERISK("*"), SLASH("/"),
+
+     AND("&"), OR("|"), NOT("~"),
+
+     LT("<"), GT(">"), EQ("="),
 
      // Literals.
      NUMBER,
@@ -23,17 +23,28 @@ public enum TokenType {
 
      IDENT,
 
- 
+
      // keywords
-     WHILE, CLASS,CONSTRUCTOR,FUNCTION,
-     METHOD,FIELD,STATIC,VAR,INT,
-     CHAR,BOOLEAN,VOID,TRUE,FALSE,
-     NULL,THIS,LET,DO,IF,ELSE, RETURN,
+     WHILE("while"), CLASS("class"),CONSTRUCTOR("constructor"),FUNCTION("function"),
+     METHOD("method"),FIELD("field"),STATIC("static"),VAR("var"),INT("int"),
+     CHAR("char"),BOOLEAN("boolean"),VOID("void"),TRUE("true"),FALSE("false"),
+     NULL("null"),THIS("this"),LET("let"),DO("do"),IF("if"),ELSE("else"), RETURN("return"),
 
-     EOF,
+     EOF("EOF"),
 
      ILLEGAL;
 
+     // lexema fixo de simbolos e palavras reservadas, null quando depende da entrada
+     public final String lexeme;
+
+     private TokenType() {
+        this(null);
+     }
+
+     private TokenType(String lexeme) {
+        this.lexeme = lexeme;
+     }
+
      static public boolean isSymbol (char c) {
         String symbols = "{}()[].,;+-*/&|<>=~";
         return symbols.indexOf(c) > -1;
@@ -41,7 +52,7 @@ public enum TokenType {
 
 
     static public boolean isKeyword (TokenType type) {
-        List<TokenType> keywords  = 
+        List<TokenType> keywords  =
             List.of(
                 WHILE, CLASS,CONSTRUCTOR,FUNCTION,
                 METHOD,FIELD,STATIC,VAR,INT,
@@ -0,0 +1,190 @@
+package br.ufma.ecp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import br.ufma.ecp.token.Keywords;
+import br.ufma.ecp.token.TokenBuffer;
+import br.ufma.ecp.token.TokenType;
+
+// microbenchmarks simples, rodar com:
+// mvn test-compile && java -cp target/classes:target/test-classes br.ufma.ecp.CompilerBenchmark
+public class CompilerBenchmark extends TestSupport {
+
+    private static final int WARMUP = 20;
+    private static final int ROUNDS = 50;
+
+    public static void main(String[] args) throws IOException {
+        keywordLookup();
+        scanThroughput();
+        parallelScan();
+        parseModes();
+        tokenXml();
+    }
+
+    // reconhecimento de palavras reservadas: HashMap<String, TokenType> antigo x Keywords.lookup
+    static void keywordLookup() throws IOException {
+        var source = ByteBuffer.wrap(squareSources());
+        var tokens = new Scanner(source).tokenize();
+
+        int n = 0;
+        for (int i = 0; i < tokens.size(); i++)
+            if (tokens.type(i) == TokenType.IDENT || TokenType.isKeyword(tokens.type(i)))
+                n++;
+        int[] starts = new int[n];
+        int[] lengths = new int[n];
+        for (int i = 0, j = 0; i < tokens.size(); i++) {
+            if (tokens.type(i) == TokenType.IDENT || TokenType.isKeyword(tokens.type(i))) {
+                starts[j] = tokens.start(i);
+                lengths[j++] = tokens.length(i);
+            }
+        }
+
+        Map<String, TokenType> keywords = new HashMap<>();
+        for (TokenType type : TokenType.values())
+            if (TokenType.isKeyword(type))
+                keywords.put(type.lexeme, type);
+
+        int repeat = 200;
+        long mapTime = measure(() -> {
+            int found = 0;
+            for (int r = 0; r < repeat; r++)
+                for (int i = 0; i < starts.length; i++) {
+                    String id = TokenBuffer.decode(source, starts[i], lengths[i]);
+                    if (keywords.get(id) != null)
+                        found++;
+                }
+            return found;
+        });
+        long lookupTime = measure(() -> {
+            int found = 0;
+            for (int r = 0; r < repeat; r++)
+                for (int i = 0; i < starts.length; i++)
+                    if (Keywords.lookup(source, starts[i], lengths[i]) != TokenType.IDENT)
+                        found++;
+            return found;
+        });
+
+        long ops = (long) repeat * starts.length;
+        System.out.printf("keyword lookup  HashMap: %6.2f ns/op  Keywords: %6.2f ns/op%n",
+                (double) mapTime / ops, (double) lookupTime / ops);
+    }
+
+    // tokenize() sobre fontes com cabecalhos de licenca e comentarios de documentacao grandes
+    static void scanThroughput() throws IOException {
+        var header = "/*\n" + " * Licensed under the Apache License, Version 2.0 (the \"License\");\n".repeat(40) + " */\n";
+        var doc = "    /** " + "Documentacao da rotina, com varias linhas.\n      ".repeat(10) + "*/\n";
+        var text = new StringBuilder();
+        for (String file : new String[] { "Square/Main.jack", "Square/Square.jack", "Square/SquareGame.jack" })
+            text.append(header).append(fromFile(file).replace("    method ", doc + "    method "));
+        var input = text.toString().repeat(50).getBytes(StandardCharsets.UTF_8);
+
+        long time = measure(() -> new Scanner(input).tokenize().size());
+        System.out.printf("tokenize  %d KB: %8.1f MB/s%n", input.length / 1024, input.length * 1e3 / time);
+    }
+
+    // um unico arquivo grande: Scanner sequencial x ParallelScanner no common pool
+    static void parallelScan() throws IOException {
+        var input = ByteBuffer.wrap(new String(squareSources(), StandardCharsets.UTF_8).repeat(1500)
+                .getBytes(StandardCharsets.UTF_8));
+
+        long sequential = measure(() -> new Scanner(input).tokenize().size());
+        long prepass = measure(() -> ParallelScanner.splitPoints(input, ParallelScanner.DEFAULT_CHUNK_SIZE).length);
+        var pool = new ForkJoinPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+        long parallel = measure(() -> ParallelScanner.tokenize(input, pool, ParallelScanner.DEFAULT_CHUNK_SIZE).size());
+        System.out.printf("parallel scan %d MB, %d threads  sequential: %6.1f ms  pre-pass: %6.1f ms  parallel: %6.1f ms%n",
+                input.remaining() >> 20, pool.getParallelism(), sequential / 1e6, prepass / 1e6, parallel / 1e6);
+    }
+
+    // compilacao das tres classes do Square: so VM x VM + arvore XML
+    static void parseModes() throws IOException {
+        var classes = new byte[3][];
+        var files = new String[] { "Square/Main.jack", "Square/Square.jack", "Square/SquareGame.jack" };
+        for (int i = 0; i < files.length; i++)
+            classes[i] = fromFile(files[i]).getBytes(StandardCharsets.UTF_8);
+        long bytes = 0;
+        for (byte[] c : classes)
+            bytes += c.length;
+        int repeat = 100;
+
+        long vmOnly = measure(() -> {
+            int n = 0;
+            for (int r = 0; r < repeat; r++)
+                for (byte[] c : classes) {
+                    var parser = new Parser(c);
+                    parser.parse();
+                    n += parser.VMOutput().length();
+                }
+            return n;
+        });
+        long withXml = measure(() -> {
+            int n = 0;
+            for (int r = 0; r < repeat; r++)
+                for (byte[] c : classes) {
+                    var parser = new Parser(c);
+                    parser.setListener(new XmlParseListener());
+                    parser.parse();
+                    n += parser.VMOutput().length() + parser.XMLOutput().length();
+                }
+            return n;
+        });
+        System.out.printf("parse  vm only: %6.1f MB/s  vm + xml: %6.1f MB/s%n",
+                bytes * repeat * 1e3 / vmOnly, bytes * repeat * 1e3 / withXml);
+    }
+
+    // T.xml pelo Token.toString + StringBuilder x XmlWriter em um canal
+    static void tokenXml() throws IOException {
+        var input = squareSources();
+        var tokens = new Scanner(input).tokenize();
+        var sink = Channels.newChannel(OutputStream.nullOutputStream());
+
+        long viaToString = measure(() -> {
+            var result = new StringBuilder();
+            result.append("<tokens>\r\n");
+            for (int i = 0; i < tokens.size() - 1; i++)
+                result.append(String.format("%s\r\n", tokens.token(i).toString()));
+            result.append("</tokens>\r\n");
+            return result.toString().getBytes(StandardCharsets.UTF_8).length;
+        });
+        long viaWriter = measure(() -> {
+            var writer = new XmlWriter(sink);
+            writer.tokens(tokens);
+            writer.flush();
+            return tokens.size();
+        });
+        System.out.printf("T.xml  toString: %6.1f MB/s  XmlWriter: %6.1f MB/s%n",
+                input.length * 1e3 / viaToString, input.length * 1e3 / viaWriter);
+    }
+
+    static byte[] squareSources() throws IOException {
+        var text = fromFile("Square/Main.jack") + fromFile("Square/Square.jack") + fromFile("Square/SquareGame.jack");
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    interface Work {
+        int run();
+    }
+
+    // melhor tempo (ns) entre as rodadas, depois do aquecimento
+    static long measure(Work work) {
+        int sink = 0;
+        for (int i = 0; i < WARMUP; i++)
+            sink += work.run();
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            long t0 = System.nanoTime();
+            sink += work.run();
+            best = Math.min(best, System.nanoTime() - t0);
+        }
+        if (sink == 42)
+            System.out.print("");
+        return best;
+    }
+
+}
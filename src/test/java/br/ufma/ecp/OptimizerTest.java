@@ -0,0 +1,952 @@
+package br.ufma.ecp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+// Passes de otimizacao (Optimization): o codigo gerado e comparado e executado
+// no VMInterpreter com e sem cada um.
+public class OptimizerTest {
+
+    // ordena 20 numeros e devolve a soma ponderada: exercita while, if e arrays
+    private static final String SORT = """
+        class Main {
+            function int main() {
+                var Array a;
+                var int i, j, t, n, sum;
+                let n = 20;
+                let a = Array.new(n);
+                let i = 0;
+                while (i < n) {
+                    let a[i] = n - i;
+                    let i = i + 1;
+                }
+                let i = 0;
+                while (i < n) {
+                    let j = 0;
+                    while (j < (n - 1 - i)) {
+                        if (a[j] > a[j + 1]) {
+                            let t = a[j];
+                            let a[j] = a[j + 1];
+                            let a[j + 1] = t;
+                        }
+                        let j = j + 1;
+                    }
+                    let i = i + 1;
+                }
+                let sum = 0;
+                let i = 0;
+                while (true) {
+                    if (i = n) {
+                        return sum + a[0];
+                    }
+                    let sum = sum + (a[i] * (i + 1));
+                    let i = i + 1;
+                }
+                return sum;
+            }
+        }
+        """;
+
+    private static Parser compile(String source, Set<Optimization> optimizations) {
+        var parser = new Parser(source.getBytes(StandardCharsets.UTF_8));
+        parser.setOptimizations(optimizations);
+        parser.parse();
+        return parser;
+    }
+
+    @Test
+    public void testPeepholeRewritesPatterns () {
+        var input = """
+            class Main {
+                function void main () {
+                    var Array a;
+                    var int x;
+                    if (x < 3) {
+                        let x = 1;
+                    } else {
+                        let x = 2;
+                    }
+                    let a[x] = 7;
+                    return;
+                }
+            }
+            """;
+        var parser = compile(input, EnumSet.of(Optimization.PEEPHOLE));
+        String expected = """
+            function Main.main 2
+            push local 1
+            push constant 3
+            lt
+            not
+            if-goto IF_FALSE0
+            push constant 1
+            pop local 1
+            goto IF_END0
+            label IF_FALSE0
+            push constant 2
+            pop local 1
+            label IF_END0
+            push local 1
+            push local 0
+            add
+            pop pointer 1
+            push constant 7
+            pop that 0
+            push constant 0
+            return
+            """;
+        assertEquals(expected, parser.VMOutput());
+        assertEquals(3, parser.removedInstructions());
+    }
+
+    @Test
+    public void testPeepholePreservesBehavior () {
+        var plain = compile(SORT, Set.of());
+        var optimized = compile(SORT, EnumSet.of(Optimization.PEEPHOLE));
+        assertEquals(0, plain.removedInstructions());
+        assertTrue(optimized.removedInstructions() > 0);
+
+        var before = new VMInterpreter(plain.VMOutput());
+        var after = new VMInterpreter(optimized.VMOutput());
+        assertEquals(2871, before.run("Main.main"));
+        assertEquals(2871, after.run("Main.main"));
+        assertTrue(after.executed() < before.executed());
+    }
+
+    @Test
+    public void testPeepholeCustomRules () {
+        var input = """
+            class Main {
+                function int main () {
+                    return 1 + 1;
+                }
+            }
+            """;
+        var rule = new Peephole.Rule("add-one-one", List.of("push constant 1", "push constant 1", "add"),
+                List.of("push constant 2"));
+        var parser = new Parser(input.getBytes(StandardCharsets.UTF_8));
+        parser.addPass(new Peephole(List.of(rule)));
+        parser.parse();
+        String expected = """
+            function Main.main 0
+            push constant 2
+            return
+            """;
+        assertEquals(expected, parser.VMOutput());
+        assertEquals(2, parser.removedInstructions());
+    }
+
+    @Test
+    public void testConstantFolding () {
+        var input = """
+            class Main {
+                function int f (int x) {
+                    var int a, b, c, d, e;
+                    let a = 2 * 16 + x;
+                    let b = (x + 0) - (-(5));
+                    let c = 32767 + 1;
+                    let d = (x * 0) + (Main.g() * 0) + (0 - x);
+                    let e = ~(1 = 1) | (10 / 3);
+                    return a + b + c + d + e + (7 / 0);
+                }
+                function int g () {
+                    return 1;
+                }
+            }
+            """;
+        var parser = compile(input, EnumSet.of(Optimization.CONSTANT_FOLDING));
+        String expected = """
+            function Main.f 5
+            push constant 32
+            push argument 0
+            add
+            pop local 0
+            push argument 0
+            push constant 5
+            neg
+            sub
+            pop local 1
+            push constant 32767
+            not
+            pop local 2
+            call Main.g 0
+            push constant 0
+            call Math.multiply 2
+            push argument 0
+            neg
+            add
+            pop local 3
+            push constant 3
+            pop local 4
+            push local 0
+            push local 1
+            add
+            push local 2
+            add
+            push local 3
+            add
+            push local 4
+            add
+            push constant 7
+            push constant 0
+            call Math.divide 2
+            add
+            return
+            function Main.g 0
+            push constant 1
+            return
+            """;
+        assertEquals(expected, parser.VMOutput());
+
+        var plain = new VMInterpreter(compile(input.replace(" + (7 / 0)", ""), Set.of()).VMOutput());
+        var folded = new VMInterpreter(compile(input.replace(" + (7 / 0)", ""), EnumSet.of(Optimization.CONSTANT_FOLDING)).VMOutput());
+        assertEquals(-32721, plain.run("Main.f", 7));
+        assertEquals(-32721, folded.run("Main.f", 7));
+        assertEquals(1, folded.osCalls("Math.multiply"));
+        assertTrue(folded.executed() < plain.executed());
+    }
+
+    @Test
+    public void testStrengthReduction () {
+        var input = """
+            class Main {
+                function int f (int x) {
+                    return (x * 10) - ((x + 1) * -3);
+                }
+                function int g (int x) {
+                    return (2 * x) + (x / 1) + (x / -1) + (x * 1000) + (x / 3);
+                }
+            }
+            """;
+        var parser = compile(input, EnumSet.of(Optimization.STRENGTH_REDUCTION));
+        String expected = """
+            function Main.f 0
+            push argument 0
+            push argument 0
+            add
+            pop temp 2
+            push temp 2
+            push temp 2
+            add
+            push argument 0
+            add
+            pop temp 2
+            push temp 2
+            push temp 2
+            add
+            push argument 0
+            push constant 1
+            add
+            pop temp 1
+            push temp 1
+            push temp 1
+            add
+            push temp 1
+            add
+            neg
+            sub
+            return
+            function Main.g 0
+            push argument 0
+            push argument 0
+            add
+            push argument 0
+            add
+            push argument 0
+            neg
+            add
+            push argument 0
+            push constant 1000
+            call Math.multiply 2
+            add
+            push argument 0
+            push constant 3
+            call Math.divide 2
+            add
+            return
+            """;
+        assertEquals(expected, parser.VMOutput());
+
+        var plain = compile(input, Set.of()).VMOutput();
+        for (int x : new int[] { 0, 1, 7, -7, 1234, -3277, 32767, -32768 }) {
+            var before = new VMInterpreter(plain);
+            var after = new VMInterpreter(parser.VMOutput());
+            assertEquals(before.run("Main.f", x), after.run("Main.f", x));
+            assertEquals(0, after.osCalls("Math.multiply"));
+            assertEquals(before.run("Main.g", x), after.run("Main.g", x));
+        }
+    }
+
+    @Test
+    public void testStrengthReductionEvaluatesCallOnce () {
+        // a chamada tem efeito colateral: repetir o operando mudaria calls
+        var input = """
+            class Main {
+                static int calls;
+                function int f () {
+                    let calls = calls + 1;
+                    return 2;
+                }
+                function int main () {
+                    var int x;
+                    let x = (Main.f() * 3) + (5 * Main.f());
+                    return (calls * 100) + x;
+                }
+            }
+            """;
+        var optimized = compile(input, EnumSet.of(Optimization.STRENGTH_REDUCTION)).VMOutput();
+        assertTrue(optimized.contains("call Main.f 0\npop temp 1\npush temp 1\n"));
+        var plain = new VMInterpreter(compile(input, Set.of()).VMOutput());
+        var after = new VMInterpreter(optimized);
+        assertEquals(216, plain.run("Main.main"));
+        assertEquals(216, after.run("Main.main"));
+        assertEquals(0, after.osCalls("Math.multiply"));
+    }
+
+    @Test
+    public void testStringPool () {
+        var input = """
+            class Main {
+                static int count;
+                function void main () {
+                    var int i;
+                    while (i < 5) {
+                        do Output.printString("hi");
+                        let i = i + 1;
+                    }
+                    do Output.printString("bye");
+                    do Output.printString("hi");
+                    return;
+                }
+            }
+            """;
+        var parser = compile(input, EnumSet.of(Optimization.STRING_POOL));
+        String vm = parser.VMOutput();
+        assertTrue(vm.contains("""
+            push static 1
+            if-goto STRING_READY0
+            call Main.string$0 0
+            pop static 1
+            label STRING_READY0
+            push static 1
+            call Output.printString 1
+            """));
+        assertTrue(vm.endsWith("""
+            function Main.string$0 0
+            push constant 2
+            call String.new 1
+            push constant 104
+            call String.appendChar 2
+            push constant 105
+            call String.appendChar 2
+            return
+            function Main.string$1 0
+            push constant 3
+            call String.new 1
+            push constant 98
+            call String.appendChar 2
+            push constant 121
+            call String.appendChar 2
+            push constant 101
+            call String.appendChar 2
+            return
+            """));
+
+        var plain = new VMInterpreter(compile(input, Set.of()).VMOutput());
+        var pooled = new VMInterpreter(vm);
+        plain.run("Main.main");
+        pooled.run("Main.main");
+        assertEquals("hihihihihibyehi", pooled.output());
+        assertEquals(plain.output(), pooled.output());
+        assertEquals(7, plain.osCalls("String.new"));
+        assertEquals(2, pooled.osCalls("String.new"));
+        assertEquals(5, pooled.osCalls("String.appendChar"));
+    }
+
+    // classe com statics estaticos usados e literals literais distintos impressos por main
+    private static String stringClass(String name, int statics, int literals) {
+        var source = new StringBuilder("class " + name + " {\n");
+        for (int i = 0; i < statics; i++)
+            source.append("static int s").append(i).append(";\n");
+        source.append("function void main () {\n");
+        for (int i = 0; i < statics; i++)
+            source.append("let s").append(i).append(" = ").append(i).append(";\n");
+        for (int i = 0; i < literals; i++)
+            source.append("do Output.printString(\"").append(name).append(i).append("\");\n");
+        return source.append("return;\n}\n}\n").toString();
+    }
+
+    @Test
+    public void testStringPoolStaticBudget () {
+        // 230 estaticos declarados: so sobram 10 posicoes para o pool
+        var crowded = compile(stringClass("Main", 230, 20), EnumSet.of(Optimization.STRING_POOL)).VMOutput();
+        assertTrue(crowded.contains("function Main.string$9 0\n"));
+        assertFalse(crowded.contains("Main.string$10"));
+
+        // cada classe cabe sozinha, mas juntas passam de 240 posicoes
+        var program = new WholeProgram();
+        var plain = new WholeProgram();
+        for (var name : List.of("A", "B")) {
+            var source = stringClass(name, name.equals("A") ? 150 : 30, 40);
+            program.add(name, compile(source, EnumSet.of(Optimization.STRING_POOL)).VMOutput());
+            plain.add(name, compile(source, Set.of()).VMOutput());
+        }
+        assertEquals(260, program.staticsUsed());
+        assertEquals(20, program.unpoolStrings(VMWriter.STATIC_SEGMENT_SIZE));
+        assertEquals(240, program.staticsUsed());
+        // os ultimos literais de B voltam a ser montados a cada uso
+        var b = program.vmOutput("B");
+        assertTrue(b.contains("pop temp 0\ncall B.string$39 0\ncall Output.printString 1\n"));
+        assertTrue(b.contains("if-goto STRING_READY19\ncall B.string$19 0\n"));
+        assertEquals(0, program.unpoolStrings(VMWriter.STATIC_SEGMENT_SIZE));
+
+        for (var name : List.of("A.main", "B.main")) {
+            var before = new VMInterpreter(plain.vmOutput("A"), plain.vmOutput("B"));
+            var after = new VMInterpreter(program.vmOutput("A"), program.vmOutput("B"));
+            before.run(name);
+            after.run(name);
+            assertEquals(before.output(), after.output());
+        }
+
+        // usos fora do formato (uma instrucao a mais antes do pop static) ficam no
+        // pool: o programa continua acima do limite e staticsUsed() mostra isso
+        var odd = new WholeProgram();
+        for (var name : List.of("A", "B")) {
+            var source = stringClass(name, name.equals("A") ? 150 : 30, 40);
+            odd.add(name, compile(source, EnumSet.of(Optimization.STRING_POOL)).VMOutput()
+                    .replace("\npop static", "\npush constant 0\npop temp 0\npop static"));
+        }
+        assertEquals(260, odd.staticsUsed());
+        assertEquals(0, odd.unpoolStrings(VMWriter.STATIC_SEGMENT_SIZE));
+        assertEquals(260, odd.staticsUsed());
+    }
+
+    @Test
+    public void testDeadFunctionElimination () {
+        var main = """
+            class Main {
+                function int main () {
+                    return Util.twice(21);
+                }
+                function int helper (int n) {
+                    return Main.helper(n - 1);
+                }
+            }
+            """;
+        var util = """
+            class Util {
+                function int twice (int x) {
+                    return Util.add(x, x);
+                }
+                function int add (int x, int y) {
+                    return x + y;
+                }
+                function int unused (int x) {
+                    return Util.add(x, 1);
+                }
+            }
+            """;
+        var program = new WholeProgram();
+        program.add("Main", compile(main, Set.of()).VMOutput());
+        program.add("Util", compile(util, Set.of()).VMOutput());
+        assertEquals(Set.of("Main.main", "Util.twice", "Util.add"), program.reachable(program.entry()));
+
+        int before = program.size();
+        var removed = program.removeDeadFunctions();
+        assertEquals(List.of("Main.helper", "Util.unused"), removed.stream().map(WholeProgram.Function::name).toList());
+        assertEquals(before - 11, program.size());
+        String expected = """
+            function Main.main 0
+            push constant 21
+            call Util.twice 1
+            return
+            """;
+        assertEquals(expected, program.vmOutput("Main"));
+
+        var vm = new VMInterpreter(program.vmOutput("Main"), program.vmOutput("Util"));
+        assertEquals(42, vm.run("Main.main"));
+    }
+
+    @Test
+    public void testBranchLayoutRotatesLoops () {
+        var input = """
+            class Main {
+                function int main () {
+                    var int i, s;
+                    while (i < 10) {
+                        if (i) {
+                            let s = s + i;
+                        } else {
+                            let s = s + 100;
+                        }
+                        let i = i + 1;
+                    }
+                    return s;
+                }
+            }
+            """;
+        var parser = compile(input, EnumSet.of(Optimization.BRANCH_LAYOUT));
+        String expected = """
+            function Main.main 2
+            goto WHILE_EXP0
+            label BLOCK0
+            push local 0
+            if-goto IF_TRUE0
+            goto IF_FALSE0
+            label IF_TRUE0
+            push local 1
+            push local 0
+            add
+            pop local 1
+            goto IF_END0
+            label IF_FALSE0
+            push local 1
+            push constant 100
+            add
+            pop local 1
+            label IF_END0
+            push local 0
+            push constant 1
+            add
+            pop local 0
+            label WHILE_EXP0
+            push local 0
+            push constant 10
+            lt
+            if-goto BLOCK0
+            push local 1
+            return
+            """;
+        assertEquals(expected, parser.VMOutput());
+        assertEquals(145, new VMInterpreter(parser.VMOutput()).run("Main.main"));
+    }
+
+    @Test
+    public void testBranchLayoutPreservesBehavior () {
+        var plain = new VMInterpreter(compile(SORT, Set.of()).VMOutput());
+        var layout = new VMInterpreter(compile(SORT, EnumSet.of(Optimization.BRANCH_LAYOUT)).VMOutput());
+        var both = new VMInterpreter(compile(SORT, EnumSet.of(Optimization.PEEPHOLE, Optimization.BRANCH_LAYOUT)).VMOutput());
+        assertEquals(2871, plain.run("Main.main"));
+        assertEquals(2871, layout.run("Main.main"));
+        assertEquals(2871, both.run("Main.main"));
+        assertTrue(layout.executed() < plain.executed());
+        assertTrue(both.executed() < layout.executed());
+    }
+
+    @Test
+    public void testRedundantLoadStore () {
+        var input = """
+            class Main {
+                function int f (int a) {
+                    var int x, y, t;
+                    let x = 0;
+                    let t = a + 1;
+                    let y = t;
+                    let x = 7;
+                    let x = 7;
+                    let a = x + y;
+                    return a;
+                }
+            }
+            """;
+        var parser = compile(input, EnumSet.of(Optimization.LOAD_STORE));
+        String expected = """
+            function Main.f 3
+            push argument 0
+            push constant 1
+            add
+            pop local 1
+            push constant 7
+            push local 1
+            add
+            return
+            """;
+        assertEquals(expected, parser.VMOutput());
+
+        var before = new VMInterpreter(compile(input, Set.of()).VMOutput());
+        var after = new VMInterpreter(parser.VMOutput());
+        assertEquals(before.run("Main.f", 5), after.run("Main.f", 5));
+        assertEquals(19, before.executed());
+        assertEquals(9, after.executed());
+    }
+
+    @Test
+    public void testRedundantLoadStoreAcrossBlocks () {
+        var input = """
+            class Main {
+                function int main () {
+                    var int i, n, s, k;
+                    let n = 10;
+                    let k = 3;
+                    while (i < n) {
+                        let s = s + k;
+                        let i = i + 1;
+                    }
+                    if (s > 20) {
+                        let k = 4;
+                    }
+                    return s + k;
+                }
+            }
+            """;
+        var plain = compile(input, Set.of()).VMOutput();
+        var optimized = compile(input, EnumSet.of(Optimization.LOAD_STORE)).VMOutput();
+        // k so vale 3 dentro do laco; depois do if pode ser 3 ou 4
+        assertTrue(optimized.contains("push local 2\npush constant 3\nadd\n"));
+        assertTrue(optimized.contains("push local 2\npush local 3\nadd\nreturn\n"));
+
+        var before = new VMInterpreter(plain);
+        var after = new VMInterpreter(optimized);
+        assertEquals(34, before.run("Main.main"));
+        assertEquals(34, after.run("Main.main"));
+        assertTrue(after.executed() < before.executed());
+
+        var sort = new VMInterpreter(compile(SORT, EnumSet.of(Optimization.LOAD_STORE)).VMOutput());
+        assertEquals(2871, sort.run("Main.main"));
+    }
+
+    @Test
+    public void testRedundantLoadStoreFields () {
+        var input = """
+            class Main {
+                field int x, y;
+                constructor Main new() {
+                    let x = 3;
+                    let y = 2;
+                    return this;
+                }
+                method int f(int n) {
+                    var int i, s;
+                    while (i < n) {
+                        let s = s + (x + x + x) - (x + x + x + y);
+                        let i = i + 1;
+                    }
+                    return s;
+                }
+                method int g() {
+                    return x + x + y;
+                }
+                method int h() {
+                    var int a;
+                    let a = x + x;
+                    let x = a;
+                    return a + x + x;
+                }
+                function int main() {
+                    var Main m;
+                    let m = Main.new();
+                    return m.f(10) + m.g() + m.h();
+                }
+            }
+            """;
+        var plain = compile(input, Set.of()).VMOutput();
+        var optimized = compile(input, EnumSet.of(Optimization.LOAD_STORE)).VMOutput();
+        // seis leituras de x no corpo do laco: a primeira fica em temp 3
+        assertTrue(optimized.contains("push local 1\npush this 0\npop temp 3\npush temp 3\npush temp 3\nadd\n"));
+        assertFalse(optimized.contains("push temp 3\npush this 0"));
+        // duas leituras nao pagam o temp; em h o "let x = a" muda o campo no meio
+        assertTrue(optimized.contains("function Main.g 0\npush argument 0\npop pointer 0\npush this 0\npush this 0\nadd\n"));
+        assertTrue(optimized.contains("pop this 0\npush local 0\npush this 0\nadd\npush this 0\nadd\nreturn\n"));
+
+        var before = new VMInterpreter(plain);
+        var after = new VMInterpreter(optimized);
+        assertEquals(6, before.run("Main.main"));
+        assertEquals(6, after.run("Main.main"));
+        // duas instrucoes VM a mais por volta, mas 9 instrucoes Hack a menos
+        assertEquals(317, before.executed());
+        assertEquals(337, after.executed());
+        assertEquals(2857, before.cost());
+        assertEquals(2767, after.cost());
+    }
+
+    @Test
+    public void testArrayAddressCSE () {
+        var input = """
+            class Main {
+                function int main () {
+                    var Array a, b;
+                    var int i;
+                    let a = Array.new(3);
+                    let b = Array.new(3);
+                    let i = 1;
+                    let b[i] = 5;
+                    let a[i] = 2;
+                    let a[i] = a[i] + b[i];
+                    let a[i] = a[i] * a[i];
+                    return a[i];
+                }
+            }
+            """;
+        var plain = compile(input, Set.of()).VMOutput();
+        var optimized = compile(input, EnumSet.of(Optimization.ARRAY_CSE)).VMOutput();
+        // a + i e b + i ficam em temps; a leitura de a[i] usa o pointer 1 do let anterior
+        assertTrue(optimized.contains("""
+            push temp 4
+            push that 0
+            push temp 3
+            pop pointer 1
+            push that 0
+            add
+            pop temp 0
+            pop pointer 1
+            push temp 0
+            pop that 0
+            """));
+        // a[i] * a[i]: pointer 1 ja esta em a + i; o endereco na pilha so e descartado
+        assertTrue(optimized.contains("""
+            push temp 4
+            push that 0
+            push that 0
+            call Math.multiply 2
+            pop that 0
+            pop temp 0
+            """));
+
+        var before = new VMInterpreter(plain);
+        var after = new VMInterpreter(optimized);
+        assertEquals(49, before.run("Main.main"));
+        assertEquals(49, after.run("Main.main"));
+        assertTrue(after.executed() < before.executed());
+    }
+
+    @Test
+    public void testArrayAddressCSECost () {
+        var input = """
+            class Main {
+                static Array s;
+                static int k;
+                function int main () {
+                    var Array a;
+                    var int i;
+                    let a = Array.new(3);
+                    let s = a;
+                    let i = 1;
+                    let k = 2;
+                    let a[i] = a[i] + 1;
+                    let s[k] = s[k] + 1;
+                    return a[i] + s[k];
+                }
+            }
+            """;
+        var plain = compile(input, Set.of()).VMOutput();
+        var optimized = compile(input, EnumSet.of(Optimization.ARRAY_CSE)).VMOutput();
+        // local + local (25 instrucoes Hack) usada mais duas vezes: vai para o temp
+        assertTrue(optimized.contains("push local 1\npush local 0\nadd\npop temp 3\npush temp 3\n"));
+        assertTrue(optimized.contains("push temp 3\npop pointer 1\npush that 0\n"));
+        // static + static (17) refeita uma vez custa o mesmo que o temp: fica como esta
+        assertTrue(optimized.contains("""
+            push static 1
+            push static 0
+            add
+            push static 1
+            push static 0
+            add
+            pop pointer 1
+            """));
+
+        var before = new VMInterpreter(plain);
+        var after = new VMInterpreter(optimized);
+        assertEquals(2, before.run("Main.main"));
+        assertEquals(2, after.run("Main.main"));
+        assertEquals(50, before.executed());
+        assertEquals(44, after.executed());
+        assertEquals(440, before.cost());
+        assertEquals(391, after.cost());
+    }
+
+    @Test
+    public void testArrayAddressCSEPreservesBehavior () {
+        // i muda entre as leituras e a chamada pode mudar o static s
+        var input = """
+            class Main {
+                static int s;
+                function int bump () {
+                    let s = s + 1;
+                    return 10;
+                }
+                function int main () {
+                    var Array a;
+                    var int i, x;
+                    let a = Array.new(4);
+                    let a[0] = 1;
+                    let a[1] = 2;
+                    let a[2] = 3;
+                    let i = 0;
+                    let x = a[i];
+                    let i = i + 1;
+                    let x = x + a[i] + a[i];
+                    let s = 1;
+                    let a[s] = Main.bump() + a[s];
+                    return x * 100 + (a[1] * 10) + a[2];
+                }
+            }
+            """;
+        var plain = new VMInterpreter(compile(input, Set.of()).VMOutput());
+        var optimized = new VMInterpreter(compile(input, EnumSet.of(Optimization.ARRAY_CSE)).VMOutput());
+        assertEquals(plain.run("Main.main"), optimized.run("Main.main"));
+        assertEquals(5 * 100 + 13 * 10 + 3, optimized.run("Main.main"));
+
+        var sort = new VMInterpreter(compile(SORT, EnumSet.allOf(Optimization.class)).VMOutput());
+        assertEquals(2871, sort.run("Main.main"));
+    }
+
+    @Test
+    public void testInlineSmallFunctions () {
+        var main = """
+            class Main {
+                function int main () {
+                    var Point p;
+                    var int i, s;
+                    let p = Point.new(3, 4);
+                    while (i < 5) {
+                        do p.setX(p.getX() + i);
+                        let s = s + Point.max(p.getX(), i * 4) + Point.count();
+                        let i = i + 1;
+                    }
+                    return s;
+                }
+            }
+            """;
+        var point = """
+            class Point {
+                static int created;
+                field int x, y;
+                constructor Point new (int ax, int ay) {
+                    let x = ax;
+                    let y = ay;
+                    let created = created + 1;
+                    return this;
+                }
+                method int getX () {
+                    return x;
+                }
+                method void setX (int v) {
+                    let x = v;
+                    return;
+                }
+                function int max (int a, int b) {
+                    if (a > b) {
+                        return a;
+                    }
+                    return b;
+                }
+                function int count () {
+                    return created;
+                }
+            }
+            """;
+        var program = new WholeProgram();
+        program.add("Main", compile(main, Set.of()).VMOutput());
+        program.add("Point", compile(point, Set.of()).VMOutput());
+        var before = new VMInterpreter(program.vmOutput("Main"), program.vmOutput("Point"));
+        assertEquals(48, before.run("Main.main"));
+
+        // getX, setX e max entram; count usa static de Point e fica; new passa do limite
+        assertEquals(4, program.inline(WholeProgram.DEFAULT_INLINE_SIZE));
+        var vm = program.vmOutput("Main");
+        assertTrue(vm.startsWith("function Main.main 6\n"));
+        assertTrue(vm.contains("call Point.count 0\n"));
+        assertTrue(vm.contains("call Point.new 2\n"));
+        assertFalse(vm.contains("call Point.getX"));
+        // p.getX(): argumento 0 vira local 3, pointer 0 de Main e guardado em local 4
+        assertTrue(vm.contains("""
+            push local 0
+            pop local 3
+            push pointer 0
+            pop local 4
+            push local 3
+            pop pointer 0
+            push this 0
+            push local 4
+            pop pointer 0
+            """));
+        // o return no meio de max desvia para o fim da copia
+        assertTrue(vm.contains("goto INLINE3_END\n"));
+
+        var after = new VMInterpreter(program.vmOutput("Main"), program.vmOutput("Point"));
+        assertEquals(48, after.run("Main.main"));
+
+        // mesma entrada, mesma saida (a ordem de add nao importa)
+        var again = new WholeProgram();
+        again.add("Point", compile(point, Set.of()).VMOutput());
+        again.add("Main", compile(main, Set.of()).VMOutput());
+        again.inline(WholeProgram.DEFAULT_INLINE_SIZE);
+        assertEquals(vm, again.vmOutput("Main"));
+    }
+
+    @Test
+    public void testTailCall () {
+        var input = """
+            class Main {
+                field int total;
+                function int sum (int n, int acc) {
+                    if (n = 0) {
+                        return acc;
+                    }
+                    return Main.sum(n - 1, acc + n);
+                }
+                method void add (int n) {
+                    if (n > 0) {
+                        let total = total + n;
+                        do add(n - 1);
+                    }
+                    return;
+                }
+                function int main () {
+                    var Main m;
+                    let m = Main.new();
+                    do m.add(100);
+                    return Main.sum(100, 0) - m.total();
+                }
+                constructor Main new () {
+                    let total = 0;
+                    return this;
+                }
+                method int total () {
+                    return total;
+                }
+            }
+            """;
+        var optimized = compile(input, EnumSet.of(Optimization.TAIL_CALL)).VMOutput();
+        assertTrue(optimized.contains("""
+            function Main.sum 0
+            label TAIL_CALL
+            push argument 0
+            """));
+        assertTrue(optimized.contains("""
+            pop argument 1
+            pop argument 0
+            goto TAIL_CALL
+            """));
+        assertFalse(optimized.contains("call Main.sum 2\nreturn"));
+        // do add(n - 1) no fim do if: o rotulo IF_FALSE0 continua para o outro caminho
+        assertTrue(optimized.contains("""
+            sub
+            pop argument 1
+            pop argument 0
+            goto TAIL_CALL
+            label IF_FALSE0
+            push constant 0
+            return
+            """));
+
+        var before = new VMInterpreter(compile(input, Set.of()).VMOutput());
+        var after = new VMInterpreter(optimized);
+        assertEquals(0, before.run("Main.main"));
+        assertEquals(0, after.run("Main.main"));
+        assertTrue(after.executed() < before.executed());
+        assertEquals(5050, after.run("Main.sum", 100, 0));
+        assertTrue(before.maxDepth() > 100);
+        assertTrue(after.maxDepth() < 5);
+
+        var all = new VMInterpreter(compile(input, EnumSet.allOf(Optimization.class)).VMOutput());
+        assertEquals(0, all.run("Main.main"));
+    }
+}
@@ -1,18 +1,32 @@
 package br.ufma.ecp;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.concurrent.ForkJoinPool;
 
+import org.junit.Assume;
 import org.junit.Test;
 
+import br.ufma.ecp.token.TokenBuffer;
+import br.ufma.ecp.token.TokenType;
+
 public class ParserTest extends TestSupport {
 
     @Test
     public void testParseLetSimple() {
         var input = "let string = 20;";
         var parser = new Parser(input.getBytes(StandardCharsets.UTF_8));
+        parser.setListener(new XmlParseListener());
         parser.parseLet();
         System.out.println(parser.XMLOutput());
     }
@@ -53,6 +67,8 @@ public class ParserTest extends TestSupport {
                 """;
 
         var parser = new Parser(input.getBytes(StandardCharsets.UTF_8));
+
+        parser.setListener(new XmlParseListener());
         parser.parseIf();
         var result = parser.XMLOutput();
         expectedResult = expectedResult.replaceAll("  ", "");
@@ -64,6 +80,7 @@ public class ParserTest extends TestSupport {
     public void testParseDo() {
         var input = "do Sys.wait(5);";
         var parser = new Parser(input.getBytes(StandardCharsets.UTF_8));
+        parser.setListener(new XmlParseListener());
         parser.parseDo();
 
         var expectedResult = """
@@ -95,6 +112,7 @@ public class ParserTest extends TestSupport {
     public void testParseClassVarDec() {
         var input = "field Square square;";
         var parser = new Parser(input.getBytes(StandardCharsets.UTF_8));
+        parser.setListener(new XmlParseListener());
         parser.parseClassVarDec();
         var expectedResult = """
             <classVarDec>
@@ -123,6 +141,7 @@ public class ParserTest extends TestSupport {
              }
                 """;;
         var parser = new Parser(input.getBytes(StandardCharsets.UTF_8));
+        parser.setListener(new XmlParseListener());
         parser.parseSubroutineDec();
         var expectedResult = """
             <subroutineDec>
@@ -214,6 +233,8 @@ public class ParserTest extends TestSupport {
         var expectedResult =  fromFile("ExpressionLessSquare/SquareGame.xml");
 
         var parser = new Parser(input.getBytes(StandardCharsets.UTF_8));
+
+        parser.setListener(new XmlParseListener());
         parser.parse();
         var result = parser.XMLOutput();
         expectedResult = expectedResult.replaceAll("  ", "");
@@ -227,6 +248,8 @@ public class ParserTest extends TestSupport {
         var expectedResult =  fromFile("Square/Square.xml");
 
         var parser = new Parser(input.getBytes(StandardCharsets.UTF_8));
+
+        parser.setListener(new XmlParseListener());
         parser.parse();
         var result = parser.XMLOutput();
         expectedResult = expectedResult.replaceAll("  ", "");
@@ -249,9 +272,364 @@ public class ParserTest extends TestSupport {
         }
         """;;
     var parser = new Parser(input.getBytes(StandardCharsets.UTF_8));
+    parser.setListener(new XmlParseListener());
     parser.parse();
     var result = parser.XMLOutput();
     System.out.println(result);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testStreamingParserMatchesInMemory() throws IOException {
+        var input = fromFile("Square/Square.jack").getBytes(StandardCharsets.UTF_8);
+
+        var expected = new Parser(input);
+        expected.setListener(new XmlParseListener());
+        expected.parse();
+        var parser = new Parser(Channels.newChannel(new ByteArrayInputStream(input)), 32, 5);
+        parser.setListener(new XmlParseListener());
+        parser.parse();
+
+        assertEquals(expected.VMOutput(), parser.VMOutput());
+        assertEquals(expected.XMLOutput(), parser.XMLOutput());
+    }
+
+    @Test
+    public void testVmOnlyModeSkipsXml() throws IOException {
+        var input = fromFile("Square/Square.jack").getBytes(StandardCharsets.UTF_8);
+
+        var withXml = new Parser(input);
+        withXml.setListener(new XmlParseListener());
+        withXml.parse();
+        var vmOnly = new Parser(input);
+        vmOnly.parse();
+
+        assertEquals(withXml.VMOutput(), vmOnly.VMOutput());
+        assertEquals("", vmOnly.XMLOutput());
+    }
+
+    @Test
+    public void testXmlListenerStreamsToChannel() throws IOException {
+        var input = fromFile("Square/SquareGame.jack").getBytes(StandardCharsets.UTF_8);
+
+        var expected = new Parser(input);
+        expected.setListener(new XmlParseListener());
+        expected.parse();
+
+        var out = new ByteArrayOutputStream();
+        var listener = new XmlParseListener(Channels.newChannel(out));
+        var parser = new Parser(Channels.newChannel(new ByteArrayInputStream(input)), 32, 5);
+        parser.setListener(listener);
+        parser.parse();
+        listener.flush();
+
+        assertEquals(expected.XMLOutput(), out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testAstReplaysParseTree() throws IOException {
+        var input = fromFile("Square/Square.jack").getBytes(StandardCharsets.UTF_8);
+
+        var expected = new Parser(input);
+        expected.setListener(new XmlParseListener());
+        expected.parse();
+
+        var ast = new Parser(input).parseAst();
+        assertEquals(NonTerminal.CLASS, ast.rule(0));
+        assertEquals(ast.size(), ast.end(0));
+        int first = ast.firstChild(0);
+        assertTrue(ast.isTerminal(first));
+        assertEquals(TokenType.CLASS, ast.tokens().type(ast.token(first)));
+        int name = ast.nextSibling(0, first);
+        assertEquals("Square", ast.tokens().lexeme(ast.token(name)));
+
+        var xml = new XmlParseListener();
+        ast.replay(xml);
+        assertEquals(expected.XMLOutput(), xml.output());
+    }
+
+    @Test
+    public void testLookaheadDoesNotAllocate() throws IOException {
+        var tokens = new Scanner(fromFile("Square/SquareGame.jack").getBytes(StandardCharsets.UTF_8)).tokenize();
+        var parsers = new Parser[200];
+        for (int i = 0; i < parsers.length; i++)
+            parsers[i] = new Parser(tokens);
+        lookahead(parsers[0], tokens);
+
+        int[] hits = { 0 };
+        long allocated = allocatedBytes(() -> {
+            for (int i = 1; i < parsers.length; i++)
+                hits[0] += lookahead(parsers[i], tokens);
+        });
+
+        assertTrue(hits[0] > 0);
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    @Test
+    public void testResetReusesParser() throws IOException {
+        var files = new String[] { "Square/Main.jack", "Square/Square.jack", "Square/SquareGame.jack" };
+        var inputs = new ByteBuffer[files.length];
+        var expected = new String[files.length];
+        for (int i = 0; i < files.length; i++) {
+            inputs[i] = ByteBuffer.wrap(fromFile(files[i]).getBytes(StandardCharsets.UTF_8));
+            var parser = new Parser(inputs[i].duplicate());
+            parser.parse();
+            expected[i] = parser.VMOutput();
+        }
+
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < files.length; i++) {
+                var parser = Parser.pooled(inputs[i].duplicate());
+                parser.parse();
+                assertEquals(expected[i], parser.VMOutput());
+                assertTrue(parser.errors().isEmpty());
+            }
+        }
+
+        // depois de aquecido, preparar o mesmo Parser para outro arquivo quase nao aloca
+        var input = inputs[2];
+        long allocated = allocatedBytes(() -> {
+            for (int i = 0; i < 100; i++)
+                Parser.pooled(input.duplicate());
+        });
+        assertTrue("allocated " + allocated + " bytes", allocated < 100 * 256);
+    }
+
+    @Test
+    public void testPooledParserStartsUnconfigured() throws IOException {
+        var input = ByteBuffer.wrap(fromFile("Square/Main.jack").getBytes(StandardCharsets.UTF_8));
+        var fresh = new Parser(input.duplicate());
+        fresh.parse();
+
+        // um passo extra que apaga tudo: se vazasse para o proximo pooled(), a saida sumiria
+        var parser = Parser.pooled(input.duplicate());
+        parser.setOptimizations(EnumSet.of(Optimization.PEEPHOLE, Optimization.CONSTANT_FOLDING));
+        parser.addPass(code -> code.clear());
+        parser.parse();
+        assertEquals("", parser.VMOutput());
+
+        var next = Parser.pooled(input.duplicate());
+        next.parse();
+        assertEquals(fresh.VMOutput(), next.VMOutput());
+        assertEquals(0, next.removedInstructions());
+    }
+
+    // bytes alocados pela thread atual durante work
+    private static long allocatedBytes(Runnable work) {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        threads.getCurrentThreadAllocatedBytes();
+        long before = threads.getCurrentThreadAllocatedBytes();
+        work.run();
+        return threads.getCurrentThreadAllocatedBytes() - before;
+    }
+
+    // consulta os conjuntos de lookahead em cada posicao do fluxo, consumindo um token por vez
+    private static int lookahead(Parser parser, TokenBuffer tokens) {
+        int hits = 0;
+        while (!parser.peekTokenIs(TokenType.EOF)) {
+            if (parser.peekTokenIn(Parser.STATEMENT_FIRST) || parser.peekTokenIn(Parser.BINARY_OPS)
+                    || parser.peekTokenIs(TokenType.IDENT))
+                hits++;
+            parser.expectPeek(-1L);
+        }
+        return hits;
+    }
+
+    @Test
+    public void testRecoversFromErrors() {
+        var input = """
+            class Main {
+              field int x;
+              field int x;
+              function void f() {
+                let x = ;
+                do Output.printInt(1);
+                let y = 2;
+                while (x + ) { let x = 1; }
+                return;
+              }
+              function void g( {
+                return;
+              }
+              function void h() {
+                return;
+              }
+            }
+            """;
+        var parser = new Parser(input.getBytes(StandardCharsets.UTF_8));
+        parser.parse();
+
+        var errors = parser.errors();
+        assertEquals(5, errors.size());
+        assertEquals(new Diagnostic(3, "x", "variable already defined"), errors.get(0));
+        assertEquals(new Diagnostic(5, ";", "term expected"), errors.get(1));
+        assertEquals(new Diagnostic(7, "y", "undefined variable"), errors.get(2));
+        assertEquals(new Diagnostic(8, ")", "term expected"), errors.get(3));
+        assertEquals(new Diagnostic(11, "{", "expected identifier or 'int' or 'char' or 'boolean'"), errors.get(4));
+        // o que vem depois de cada erro continua sendo compilado
+        assertTrue(parser.VMOutput().contains("call Output.printInt 1"));
+        assertTrue(parser.VMOutput().contains("function Main.h 0"));
+    }
+
+    @Test
+    public void testMissingBraceStopsAtNextSubroutine() {
+        var input = """
+            class M {
+              function void f() {
+                var int x;
+                let x = 1;
+              function int g() {
+                let y = ;
+                return 0;
+              }
+              function int h() {
+                while (true) { let z = ;
+              method void k() {
+                return;
+              }
+            }
+            """;
+        var parser = new Parser(input.getBytes(StandardCharsets.UTF_8));
+        parser.parse();
+
+        var errors = parser.errors();
+        assertEquals(6, errors.size());
+        assertEquals(new Diagnostic(5, "function", "expected '}'"), errors.get(0));
+        // os erros de g e h, depois do '}' que falta, ainda aparecem
+        assertEquals(new Diagnostic(6, "y", "undefined variable"), errors.get(1));
+        assertEquals(new Diagnostic(6, ";", "term expected"), errors.get(2));
+        assertEquals(new Diagnostic(10, "z", "undefined variable"), errors.get(3));
+        assertEquals(new Diagnostic(10, ";", "term expected"), errors.get(4));
+        assertEquals(new Diagnostic(11, "method", "expected '}'"), errors.get(5));
+    }
+
+    @Test
+    public void testIntegerConstantOutOfRange() {
+        var input = """
+            class Main {
+              function int f() {
+                return 32767 + 40000;
+              }
+              function int g() {
+                return 99999999999;
+              }
+            }
+            """;
+        var parser = new Parser(input.getBytes(StandardCharsets.UTF_8));
+        parser.parse();
+
+        var errors = parser.errors();
+        assertEquals(2, errors.size());
+        assertEquals(new Diagnostic(3, "40000", "integer constant out of range (0..32767)"), errors.get(0));
+        assertEquals(new Diagnostic(6, "99999999999", "integer constant out of range (0..32767)"), errors.get(1));
+    }
+
+    @Test
+    public void testUnterminatedCommentIsReported() {
+        var input = "class Main { function void f() { return; } /* sem fim";
+        var parser = new Parser(input.getBytes(StandardCharsets.UTF_8));
+        parser.parse();
+
+        assertEquals(1, parser.errors().size());
+        assertEquals("unterminated comment", parser.errors().get(0).message());
+    }
+
+    @Test
+    public void testParallelCodegenMatchesSerial() {
+        var input = bigClass(300, -1);
+        var serial = new Parser(input);
+        serial.parse();
+        var parallel = new Parser(input);
+        parallel.parse(new ForkJoinPool(4), 0);
+
+        assertTrue(serial.errors().isEmpty());
+        assertEquals(serial.VMOutput(), parallel.VMOutput());
+        assertEquals(serial.subroutines(), parallel.subroutines());
+
+        // com erro a analise e refeita em serie: mesmos diagnosticos
+        input = bigClass(300, 123);
+        serial = new Parser(input);
+        serial.parse();
+        parallel = new Parser(input);
+        parallel.parse(new ForkJoinPool(4), 0);
+
+        assertEquals(1, serial.errors().size());
+        assertEquals(serial.errors(), parallel.errors());
+        assertEquals(serial.VMOutput(), parallel.VMOutput());
+    }
+
+    // classe com n metodos; o de indice broken usa uma variavel nao declarada
+    private static byte[] bigClass(int n, int broken) {
+        var text = new StringBuilder("class Big {\n  field int x;\n  static int s;\n");
+        for (int i = 0; i < n; i++) {
+            text.append("  method int f").append(i).append("(int a) {\n")
+                .append("    var int b;\n")
+                .append("    let b = a + x;\n")
+                .append("    if (b > ").append(i).append(") { let x = b; } else { while (b < 10) { let b = b + 1; } }\n")
+                .append(i == broken ? "    let c = 1;\n" : "")
+                .append("    do f").append((i + 1) % n).append("(b);\n")
+                .append("    return b * s;\n")
+                .append("  }\n");
+        }
+        return text.append("}\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testIncrementalEditsMatchFullCompile() throws IOException {
+        var text = new StringBuilder(fromFile("Square/Square.jack"));
+        var compiler = new IncrementalCompiler(text.toString().getBytes(StandardCharsets.UTF_8));
+        var original = compiler.tokens();
+
+        // dentro do corpo de uma subrotina: so ela e reanalisada
+        edit(compiler, text, text.indexOf("size + 2;"), "size + 2".length(), "size + 4 - x");
+        assertEquals(1, compiler.reparsedSubroutines());
+        assertEquals(compile(text), compiler.vmOutput());
+
+        edit(compiler, text, text.indexOf("do Screen.setColor(false);"), 0, "/* \"comentario\"\n */ let x = 1;\n");
+        assertEquals(1, compiler.reparsedSubroutines());
+        assertEquals(compile(text), compiler.vmOutput());
+
+        // muda a fronteira entre subrotinas: compila a classe inteira
+        edit(compiler, text, text.indexOf("   method void erase()"), 0, "   function int zero() { return 0; }\n");
+        assertEquals(-1, compiler.reparsedSubroutines());
+        assertEquals(compile(text), compiler.vmOutput());
+
+        // declaracao de campo: compila a classe inteira
+        edit(compiler, text, text.indexOf("field int size;"), "field int size;".length(), "field int size, z;");
+        assertEquals(-1, compiler.reparsedSubroutines());
+        assertEquals(compile(text), compiler.vmOutput());
+
+        // insercao maior que o arquivo (a entrada cresce) e remocao de linhas inteiras
+        edit(compiler, text, text.indexOf("      return;"), 0, "      let x = 1;\n".repeat(400));
+        assertEquals(1, compiler.reparsedSubroutines());
+        assertEquals(compile(text), compiler.vmOutput());
+        edit(compiler, text, text.indexOf("      let x = 1;\n"), "      let x = 1;\n".length() * 399, "");
+        assertEquals(1, compiler.reparsedSubroutines());
+        assertEquals(compile(text), compiler.vmOutput());
+
+        // linhas dos tokens reaproveitados continuam certas, no mesmo buffer de tokens
+        var tokens = compiler.tokens();
+        assertSame(original, tokens);
+        var expected = new Scanner(text.toString().getBytes(StandardCharsets.UTF_8)).tokenize();
+        assertEquals(expected.size(), tokens.size());
+        for (int i = 0; i < tokens.size(); i++) {
+            assertEquals(expected.line(i), tokens.line(i));
+            assertEquals(expected.lexeme(i), tokens.lexeme(i));
+        }
+    }
+
+    private static void edit(IncrementalCompiler compiler, StringBuilder text, int offset, int removed, String inserted) {
+        text.replace(offset, offset + removed, inserted);
+        compiler.edit(offset, removed, inserted.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String compile(CharSequence text) {
+        var parser = new Parser(text.toString().getBytes(StandardCharsets.UTF_8));
+        parser.parse();
+        return parser.VMOutput();
+    }
+
+}
@@ -1,13 +1,30 @@
 package br.ufma.ecp;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
+import br.ufma.ecp.token.Keywords;
+import br.ufma.ecp.token.Names;
 import br.ufma.ecp.token.Token;
+import br.ufma.ecp.token.TokenBuffer;
 import br.ufma.ecp.token.TokenType;
 
 
@@ -65,4 +82,215 @@ public class ScannerTest extends TestSupport {
 
     
     
+    @Test
+    public void testTokenizeMatchesNextToken() throws IOException {
+        var input = fromFile("Square/SquareGame.jack").getBytes(StandardCharsets.UTF_8);
+
+        var tokens = new Scanner(input).tokenize();
+        var scanner = new Scanner(input);
+
+        for (int i = 0; i < tokens.size(); i++) {
+            Token tk = scanner.nextToken();
+            assertEquals(tk.type, tokens.type(i));
+            assertEquals(tk.lexeme, tokens.lexeme(i));
+            assertEquals(tk.line, tokens.line(i));
+            if (tk.type == TokenType.NUMBER)
+                assertEquals(Integer.parseInt(tk.lexeme), tokens.value(i));
+        }
+        assertEquals(TokenType.EOF, tokens.type(tokens.size() - 1));
+    }
+
+    @Test
+    public void testTokenizeMappedBuffer() throws IOException {
+        var path = Paths.get("src/test/resources/Square/Square.jack");
+        var expected = new Scanner(Files.readAllBytes(path)).tokenize();
+
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var tokens = new Scanner(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())).tokenize();
+            assertEquals(expected.size(), tokens.size());
+            for (int i = 0; i < tokens.size(); i++) {
+                assertEquals(expected.type(i), tokens.type(i));
+                assertEquals(expected.lexeme(i), tokens.lexeme(i));
+            }
+        }
+    }
+
+    @Test
+    public void testKeywordRecognition() {
+        for (TokenType type : TokenType.values()) {
+            if (TokenType.isKeyword(type)) {
+                var bytes = type.lexeme.getBytes(StandardCharsets.UTF_8);
+                assertEquals(type, Keywords.lookup(ByteBuffer.wrap(bytes), 0, bytes.length));
+            }
+        }
+        for (String id : new String[] { "i", "iff", "Class", "classe", "thus", "fals", "constructo", "x" }) {
+            var bytes = id.getBytes(StandardCharsets.UTF_8);
+            assertEquals(TokenType.IDENT, Keywords.lookup(ByteBuffer.wrap(bytes), 0, bytes.length));
+        }
+    }
+
+    @Test
+    public void testSkipCommentsAndWhitespaceKeepLines() {
+        var source = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            source.append("/* licenca ").append("*".repeat(i % 5)).append("\n linha ".repeat(i % 7)).append("**/");
+            source.append(" ".repeat(i)).append("\t\r\n".repeat(i % 3));
+            source.append("// comentario de linha ").append("x".repeat(i)).append('\n');
+            source.append("let x").append(i).append(" = ").append(i).append(";\n");
+        }
+        var input = source.toString().getBytes(StandardCharsets.UTF_8);
+
+        var tokens = new Scanner(input).tokenize();
+        assertEquals(40 * 5 + 1, tokens.size());
+        for (int i = 0; i < tokens.size() - 1; i++) {
+            int expectedLine = 1;
+            for (int j = 0; j < tokens.start(i); j++)
+                if (input[j] == '\n')
+                    expectedLine++;
+            assertEquals(expectedLine, tokens.line(i));
+        }
+        assertEquals("x39", tokens.lexeme(tokens.size() - 5));
+    }
+
+    @Test
+    public void testParallelTokenizeMatchesSequential() throws IOException {
+        var source = new StringBuilder();
+        source.append("/* bloco com \"aspas\" e\n varias\n linhas // */\n");
+        source.append("let s = \"string com /* e // dentro\";\n");
+        source.append("// linha com \" e /* sem fechar\n");
+        source.append(fromFile("Square/SquareGame.jack"));
+        var input = ByteBuffer.wrap(source.toString().repeat(5).getBytes(StandardCharsets.UTF_8));
+
+        var expected = new Scanner(input).tokenize();
+        var tokens = ParallelScanner.tokenize(input, new ForkJoinPool(4), 64);
+
+        assertTrue(ParallelScanner.splitPoints(input, 64).length > 10);
+        assertEquals(expected.size(), tokens.size());
+        for (int i = 0; i < tokens.size(); i++) {
+            assertEquals(expected.type(i), tokens.type(i));
+            assertEquals(expected.start(i), tokens.start(i));
+            assertEquals(expected.line(i), tokens.line(i));
+            assertEquals(expected.lexeme(i), tokens.lexeme(i));
+        }
+    }
+
+    @Test
+    public void testStreamingMatchesTokenize() throws IOException {
+        var source = new StringBuilder();
+        source.append("let s = \"").append("uma string bem maior que a janela ".repeat(4)).append("\";\n");
+        source.append("/* comentario\n atravessando\n a janela */ // e outro\n");
+        source.append(fromFile("Square/SquareGame.jack"));
+        var input = source.toString().getBytes(StandardCharsets.UTF_8);
+
+        var expected = new Scanner(input).tokenize();
+        var scanner = new Scanner(Channels.newChannel(new ByteArrayInputStream(input)), 16);
+        var tokens = new TokenBuffer(8);
+        for (int i = 0; i < expected.size(); i += 7) {
+            tokens.retainFrom(tokens.size());
+            scanner.fill(tokens, 7);
+            for (int j = 0; j < tokens.size(); j++) {
+                assertEquals(expected.type(i + j), tokens.type(j));
+                assertEquals(expected.lexeme(i + j), tokens.lexeme(j));
+                assertEquals(expected.line(i + j), tokens.line(j));
+            }
+        }
+        assertEquals(TokenType.EOF, tokens.type(tokens.size() - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStreamingRejectsNonBlockingChannel() throws IOException {
+        var pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        new Scanner(pipe.source(), 16);
+    }
+
+    // um canal que nao entrega nada nem termina: erro em vez de girar sem parar
+    @Test(expected = IllegalStateException.class)
+    public void testStreamingStopsOnEmptyRead() {
+        var stalled = new ReadableByteChannel() {
+            public int read(ByteBuffer target) {
+                return 0;
+            }
+
+            public boolean isOpen() {
+                return true;
+            }
+
+            public void close() {
+            }
+        };
+        new Scanner(stalled, 16).fill(new TokenBuffer(8), 1);
+    }
+
+    @Test
+    public void testNumberValueStopsAboveRange() {
+        var input = "32767 32768 40000 99999999999".getBytes(StandardCharsets.UTF_8);
+        var tokens = new Scanner(input).tokenize();
+
+        assertEquals(32767, tokens.value(0));
+        assertEquals(32768, tokens.value(1));
+        assertEquals(32768, tokens.value(2));
+        assertEquals(32768, tokens.value(3));
+        assertEquals("99999999999", tokens.lexeme(3));
+    }
+
+    @Test
+    public void testIdentifiersAreInterned() throws Exception {
+        var input = "x foo x bar foo".getBytes(StandardCharsets.UTF_8);
+        var tokens = new Scanner(input).tokenize();
+
+        assertEquals(tokens.value(0), tokens.value(2));
+        assertEquals(tokens.value(1), tokens.value(4));
+        assertTrue(tokens.value(0) != tokens.value(3));
+        var names = tokens.names();
+        assertEquals("bar", names.name(tokens.value(3)));
+        assertEquals(tokens.value(1), names.intern("foo"));
+
+        // cada compilacao tem a sua tabela; reset volta aos nomes predefinidos
+        var other = new Scanner("foo".getBytes(StandardCharsets.UTF_8)).tokenize();
+        assertTrue(other.names() != names);
+        int thisName = names.intern("this");
+        names.reset();
+        assertEquals(new Names().size(), names.size());
+        assertEquals(thisName, names.intern("this"));
+        assertEquals(new Names().intern("bar"), names.intern("bar"));
+
+        var pool = new ForkJoinPool(4);
+        var tasks = new ArrayList<Callable<Integer>>();
+        for (int t = 0; t < 8; t++)
+            tasks.add(() -> {
+                int sum = 0;
+                for (int i = 0; i < 2000; i++)
+                    sum += names.intern("concorrente" + i);
+                return sum;
+            });
+        var results = pool.invokeAll(tasks);
+        for (var result : results)
+            assertEquals(results.get(0).get(), result.get());
+    }
+
+    @Test
+    public void testXmlWriterMatchesTokenFiles() throws IOException {
+        for (var name : new String[] { "Square/Square", "Square/SquareGame", "ExpressionLessSquare/Main" }) {
+            var tokens = new Scanner(fromFile(name + ".jack").getBytes(StandardCharsets.UTF_8)).tokenize();
+            var out = new ByteArrayOutputStream();
+            var writer = new XmlWriter(Channels.newChannel(out));
+            writer.tokens(tokens);
+            writer.flush();
+            assertEquals(fromFile(name + "T.xml"), out.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testXmlWriterEscapesLexemes() {
+        var tokens = new Scanner("\"a<b & c\" < x".getBytes(StandardCharsets.UTF_8)).tokenize();
+        var out = new ByteArrayOutputStream();
+        var writer = new XmlWriter(Channels.newChannel(out));
+        writer.tokens(tokens);
+        writer.flush();
+        assertEquals("<tokens>\r\n<stringConstant> a&lt;b &amp; c </stringConstant>\r\n"
+                + "<symbol> &lt; </symbol>\r\n<identifier> x </identifier>\r\n</tokens>\r\n",
+                out.toString(StandardCharsets.UTF_8));
+    }
+
 }
@@ -0,0 +1,254 @@
+package br.ufma.ecp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Maquina virtual do nand2tetris para os testes das otimizacoes: executa o
+// codigo VM de uma ou mais classes e conta as instrucoes executadas (e o custo
+// delas em instrucoes Hack, pelo HackCost). As funcoes do SO que os testes usam
+// (Math, Memory, Array, String, Output) sao simuladas em Java e cada chamada a
+// elas conta em osCalls, nao no custo.
+public class VMInterpreter {
+
+    private static final int SP = 0, LCL = 1, ARG = 2, THIS = 3, THAT = 4, TEMP = 5;
+    private static final int STACK = 256, HEAP = 2048;
+    private static final int MAX_STEPS = 50_000_000;
+
+    private final List<Instruction> program = new ArrayList<>();
+    private final List<String> functionOf = new ArrayList<>();
+    private final Map<String, Integer> functions = new HashMap<>();
+    private final Map<String, Integer> labels = new HashMap<>();
+    private final Map<String, int[]> statics = new HashMap<>();
+    private final int[] ram = new int[32768];
+    private int heap = HEAP;
+
+    private final StringBuilder output = new StringBuilder();
+    private final Map<String, Integer> osCalls = new HashMap<>();
+    private long executed;
+    private long cost;
+    private int maxDepth;
+
+    public VMInterpreter(String... classes) {
+        for (var code : classes) {
+            String function = null;
+            for (var instruction : Instruction.parseAll(code)) {
+                if (instruction.is("function")) {
+                    function = instruction.arg();
+                    functions.put(function, program.size());
+                } else if (instruction.is("label")) {
+                    labels.put(function + "$" + instruction.arg(), program.size());
+                }
+                program.add(instruction);
+                functionOf.add(function);
+            }
+        }
+    }
+
+    // chama function com os argumentos e devolve o valor de retorno
+    public int run(String function, int... args) {
+        ram[SP] = STACK;
+        for (int arg : args)
+            push(arg);
+        int pc = call(function, args.length, -1);
+        int depth = 1;
+        for (long steps = 0; pc >= 0; steps++) {
+            if (steps > MAX_STEPS)
+                throw new IllegalStateException("too many steps");
+            var instruction = program.get(pc);
+            if (instruction.is("label")) {
+                pc++;
+                continue;
+            }
+            executed++;
+            cost += HackCost.of(instruction);
+            switch (instruction.op()) {
+                case "push" -> {
+                    push(read(instruction.arg(), instruction.index(), pc));
+                    pc++;
+                }
+                case "pop" -> {
+                    write(instruction.arg(), instruction.index(), pop(), pc);
+                    pc++;
+                }
+                case "add" -> { int b = pop(); push(pop() + b); pc++; }
+                case "sub" -> { int b = pop(); push(pop() - b); pc++; }
+                case "neg" -> { push(-pop()); pc++; }
+                case "and" -> { int b = pop(); push(pop() & b); pc++; }
+                case "or" -> { int b = pop(); push(pop() | b); pc++; }
+                case "not" -> { push(~pop()); pc++; }
+                case "eq" -> { int b = pop(); push(pop() == b ? -1 : 0); pc++; }
+                case "gt" -> { int b = pop(); push(pop() > b ? -1 : 0); pc++; }
+                case "lt" -> { int b = pop(); push(pop() < b ? -1 : 0); pc++; }
+                case "goto" -> pc = label(pc, instruction.arg());
+                case "if-goto" -> pc = pop() != 0 ? label(pc, instruction.arg()) : pc + 1;
+                case "function" -> {
+                    for (int i = 0; i < instruction.index(); i++)
+                        push(0);
+                    pc++;
+                }
+                case "call" -> {
+                    depth++;
+                    maxDepth = Math.max(maxDepth, depth);
+                    pc = call(instruction.arg(), instruction.index(), pc + 1);
+                    if (pc == -2) { // SO: ja executado
+                        depth--;
+                        pc = pcAfterBuiltin;
+                    }
+                }
+                case "return" -> {
+                    depth--;
+                    int frame = ram[LCL];
+                    int returnAddress = ram[frame - 5];
+                    int value = pop();
+                    ram[ram[ARG]] = value;
+                    ram[SP] = ram[ARG] + 1;
+                    ram[THAT] = ram[frame - 1];
+                    ram[THIS] = ram[frame - 2];
+                    ram[ARG] = ram[frame - 3];
+                    ram[LCL] = ram[frame - 4];
+                    pc = returnAddress;
+                }
+                default -> throw new IllegalStateException("unknown instruction " + instruction);
+            }
+        }
+        return ram[ram[SP] - 1];
+    }
+
+    private int pcAfterBuiltin;
+
+    private int call(String function, int nArgs, int returnAddress) {
+        Integer target = functions.get(function);
+        if (target == null) {
+            osCalls.merge(function, 1, Integer::sum);
+            int[] args = new int[nArgs];
+            for (int i = nArgs - 1; i >= 0; i--)
+                args[i] = pop();
+            push(builtin(function, args));
+            pcAfterBuiltin = returnAddress;
+            return -2;
+        }
+        push(returnAddress);
+        push(ram[LCL]);
+        push(ram[ARG]);
+        push(ram[THIS]);
+        push(ram[THAT]);
+        ram[ARG] = ram[SP] - nArgs - 5;
+        ram[LCL] = ram[SP];
+        return target;
+    }
+
+    private int builtin(String function, int[] args) {
+        switch (function) {
+            case "Math.multiply": return args[0] * args[1];
+            case "Math.divide": return args[0] / args[1];
+            case "Math.abs": return Math.abs(args[0]);
+            case "Math.min": return Math.min(args[0], args[1]);
+            case "Math.max": return Math.max(args[0], args[1]);
+            case "Memory.alloc":
+            case "Array.new": {
+                int block = heap;
+                heap += Math.max(1, args[0]);
+                return block;
+            }
+            case "Memory.deAlloc":
+            case "Array.dispose":
+            case "String.dispose":
+                return 0;
+            case "Memory.peek": return ram[args[0]];
+            case "Memory.poke": ram[args[0]] = args[1]; return 0;
+            case "String.new": {
+                int s = heap;
+                heap += args[0] + 1;
+                ram[s] = 0;
+                return s;
+            }
+            case "String.appendChar":
+                ram[args[0] + 1 + ram[args[0]]] = args[1];
+                ram[args[0]]++;
+                return args[0];
+            case "String.length": return ram[args[0]];
+            case "String.charAt": return ram[args[0] + 1 + args[1]];
+            case "Output.printInt": output.append(args[0]); return 0;
+            case "Output.printChar": output.append((char) args[0]); return 0;
+            case "Output.printString":
+                for (int i = 0; i < ram[args[0]]; i++)
+                    output.append((char) ram[args[0] + 1 + i]);
+                return 0;
+            case "Output.println": output.append('\n'); return 0;
+            default: throw new IllegalStateException("unknown function " + function);
+        }
+    }
+
+    private int read(String segment, int index, int pc) {
+        return switch (segment) {
+            case "constant" -> index;
+            case "local" -> ram[ram[LCL] + index];
+            case "argument" -> ram[ram[ARG] + index];
+            case "this" -> ram[ram[THIS] + index];
+            case "that" -> ram[ram[THAT] + index];
+            case "pointer" -> ram[THIS + index];
+            case "temp" -> ram[TEMP + index];
+            case "static" -> staticsOf(pc)[index];
+            default -> throw new IllegalStateException("unknown segment " + segment);
+        };
+    }
+
+    private void write(String segment, int index, int value, int pc) {
+        switch (segment) {
+            case "local" -> ram[ram[LCL] + index] = value;
+            case "argument" -> ram[ram[ARG] + index] = value;
+            case "this" -> ram[ram[THIS] + index] = value;
+            case "that" -> ram[ram[THAT] + index] = value;
+            case "pointer" -> ram[THIS + index] = value;
+            case "temp" -> ram[TEMP + index] = value;
+            case "static" -> staticsOf(pc)[index] = value;
+            default -> throw new IllegalStateException("cannot pop to " + segment);
+        }
+    }
+
+    // estaticos sao por classe, como no tradutor VM (um arquivo por classe)
+    private int[] staticsOf(int pc) {
+        var function = functionOf.get(pc);
+        var className = function.substring(0, function.indexOf('.'));
+        return statics.computeIfAbsent(className, k -> new int[240]);
+    }
+
+    private int label(int pc, String label) {
+        Integer target = labels.get(functionOf.get(pc) + "$" + label);
+        if (target == null)
+            throw new IllegalStateException("unknown label " + label);
+        return target;
+    }
+
+    private void push(int value) {
+        ram[ram[SP]++] = (short) value;
+    }
+
+    private int pop() {
+        return ram[--ram[SP]];
+    }
+
+    public long executed() {
+        return executed;
+    }
+
+    // instrucoes Hack estimadas para o que foi executado
+    public long cost() {
+        return cost;
+    }
+
+    public String output() {
+        return output.toString();
+    }
+
+    public int osCalls(String function) {
+        return osCalls.getOrDefault(function, 0);
+    }
+
+    // maior profundidade de chamadas (entre funcoes do programa) durante a execucao
+    public int maxDepth() {
+        return maxDepth;
+    }
+}